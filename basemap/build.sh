@@ -0,0 +1,65 @@
+#!/bin/sh
+# Builds a Wellington-region PMTiles basemap from an OSM extract with the
+# tilemaker config and profile in this directory, plus the rail overlay
+# from rail/, and stages them with the style and fonts in public/basemap
+# so Vite serves them from the same origin.
+#
+# Usage: basemap/build.sh path/to/extract.osm.pbf
+#
+# Set BASEMAP_PROFILE=transit to use the lean profile in transit/, which
+# keeps only roads, rail, stations and water.
+#
+# Needs osmium-tool, tilemaker 3.0+ (for PMTiles output) and
+# build_pbf_glyphs. Nothing is downloaded; put these under basemap/data
+# first and the build runs offline:
+#
+#   coastline/water_polygons.shp   OSM water polygons (WGS84 split)
+#   landcover/ne_10m_*/            Natural Earth urban areas, ice shelves
+#                                  and glaciated areas (full profile only)
+#   fonts/Noto Sans Regular/*.ttf  and fonts/Noto Sans Bold/*.ttf
+set -eu
+
+here=$(cd "$(dirname "$0")" && pwd)
+data="$here/data"
+out="$here/../public/basemap"
+# The map's maxBounds in VehicleMap.tsx: west,south,east,north.
+bbox="174.45,-41.7,176.5,-40.7"
+
+case ${BASEMAP_PROFILE:-full} in
+  full) profile="$here" ;;
+  transit) profile="$here/transit" ;;
+  *)
+    echo "Unknown BASEMAP_PROFILE $BASEMAP_PROFILE" >&2
+    exit 1
+    ;;
+esac
+
+extract=${1:?"usage: $0 extract.osm.pbf"}
+for required in coastline/water_polygons.shp "fonts/Noto Sans Regular" \
+  "fonts/Noto Sans Bold"; do
+  if [ ! -e "$data/$required" ]; then
+    echo "Missing $data/$required" >&2
+    exit 1
+  fi
+done
+
+mkdir -p "$out"
+osmium extract --overwrite --set-bounds --bbox "$bbox" \
+  --output "$data/wellington.osm.pbf" "$extract"
+
+# Shapefile sources in config.json are relative to the working directory.
+cd "$data"
+rm -f "$out/wellington.pmtiles"
+tilemaker --input wellington.osm.pbf --output "$out/wellington.pmtiles" \
+  --config "$profile/config.json" --process "$profile/process.lua" \
+  --bbox "$bbox"
+
+# The rail overlay drawn under the vehicles, from the same extract.
+rm -f "$out/rail.pmtiles"
+tilemaker --input wellington.osm.pbf --output "$out/rail.pmtiles" \
+  --config "$here/rail/config.json" --process "$here/rail/process.lua" \
+  --bbox "$bbox"
+
+build_pbf_glyphs "$data/fonts" "$out/fonts"
+cp "$here/style.json" "$out/style.json"
+echo "Basemap written to $out"
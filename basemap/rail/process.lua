@@ -0,0 +1,59 @@
+-- Rail overlay profile: the Wellington commuter lines railbus services
+-- replace, and their stations. Each track way is written once per line
+-- whose route relation it belongs to, tagged with the line code used in
+-- src/vehicles/railbusRoutes.json, so the app can colour it directly.
+
+node_keys = { "railway" }
+
+-- Matched against lower-cased route relation names and refs.
+linePatterns = {
+	{ "k[aā]+piti", "KPL" },
+	{ "melling", "MEL" },
+	{ "wairarapa", "WRL" },
+	{ "hutt valley", "HVL" },
+	{ "johnsonville", "JVL" },
+}
+
+function init_function()
+end
+function exit_function()
+end
+
+function lineCode(name)
+	name = string.lower(name)
+	for _, pattern in ipairs(linePatterns) do
+		if string.find(name, pattern[1]) then return pattern[2] end
+	end
+	return nil
+end
+
+function relation_scan_function()
+	if Find("type")=="route" and Find("route")=="train" then
+		if lineCode(Find("name")) or lineCode(Find("ref")) then Accept() end
+	end
+end
+
+function node_function()
+	local railway = Find("railway")
+	if railway=="station" or railway=="halt" then
+		Layer("rail_stations", false)
+		Attribute("name", Find("name"))
+	end
+end
+
+function way_function()
+	if Find("railway")~="rail" then return end
+	local written = {}
+	while true do
+		local rel = NextRelation()
+		if not rel then break end
+		local code = lineCode(FindInRelation("name")) or lineCode(FindInRelation("ref"))
+		if code and not written[code] then
+			written[code] = true
+			Layer("rail_lines", false)
+			Attribute("railbusRouteName", code)
+		end
+	end
+end
+
+-- vim: tabstop=2 shiftwidth=2 noexpandtab
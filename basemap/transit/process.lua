@@ -0,0 +1,213 @@
+-- Lean transit profile: roads, rail, stations, water and coastline only.
+-- A trimmed-down version of ../process.lua, which is based on the
+-- openmaptiles.org schema. Layer and attribute names are unchanged, so
+-- styles written for the full profile still work with these tiles.
+-- Copyright (c) 2016, KlokanTech.com & OpenMapTiles contributors.
+-- Used under CC-BY 4.0
+
+preferred_language_attribute = "name:latin"
+
+function init_function()
+end
+function exit_function()
+end
+
+function Set(list)
+	local set = {}
+	for _, l in ipairs(list) do set[l] = true end
+	return set
+end
+
+-- Meters per pixel if tile is 256x256
+ZRES7  = 1222.99
+ZRES8  = 611.5
+ZRES9  = 305.7
+ZRES10 = 152.9
+ZRES11 = 76.4
+ZRES12 = 38.2
+
+node_keys = { "place", "railway" }
+
+majorRoadValues = Set { "motorway", "trunk", "primary" }
+mainRoadValues  = Set { "secondary", "motorway_link", "trunk_link", "primary_link", "secondary_link" }
+midRoadValues   = Set { "tertiary", "tertiary_link" }
+minorRoadValues = Set { "unclassified", "residential", "road", "living_street", "service" }
+linkValues      = Set { "motorway_link", "trunk_link", "primary_link", "secondary_link", "tertiary_link" }
+railwayValues   = Set { "rail", "light_rail", "narrow_gauge" }
+stationValues   = Set { "station", "halt" }
+placeMinZooms   = { city=5, town=8, suburb=11 }
+waterClasses    = Set { "river", "riverbank", "canal", "dock" }
+
+function node_function()
+	local railway = Find("railway")
+	if stationValues[railway] then
+		WriteStation(railway)
+		return
+	end
+
+	local place = Find("place")
+	if placeMinZooms[place] then
+		Layer("place", false)
+		Attribute("class", place)
+		MinZoom(placeMinZooms[place])
+		SetNameAttributes()
+	end
+end
+
+function way_function()
+	local highway  = Find("highway")
+	local railway  = Find("railway")
+	local waterway = Find("waterway")
+	local natural  = Find("natural")
+	local landuse  = Find("landuse")
+	local isClosed = IsClosed()
+
+	if Find("disused") == "yes" then return end
+
+	-- Roads: no paths, tracks or construction, and minor roads only from z13
+	if highway~="" then
+		local h = highway
+		local minzoom = 99
+		if majorRoadValues[highway] then              minzoom = 5 end
+		if mainRoadValues[highway]  then              minzoom = 9 end
+		if midRoadValues[highway]   then              minzoom = 11 end
+		if minorRoadValues[highway] then h = "minor"; minzoom = 13 end
+
+		local ramp = false
+		if linkValues[highway] then
+			h = split(highway, "_")[1]
+			ramp = true
+			minzoom = 11
+		end
+
+		if minzoom <= 14 then
+			Layer("transportation", false)
+			MinZoom(minzoom)
+			SetZOrder()
+			Attribute("class", h)
+			SetBrunnelAttributes()
+			if ramp then AttributeNumeric("ramp", 1) end
+
+			if h ~= "minor" then
+				Layer("transportation_name", false)
+				MinZoom(math.max(minzoom, 12))
+				SetNameAttributes()
+				Attribute("class", h)
+				local ref = Find("ref")
+				if ref~="" then Attribute("ref", ref) end
+			end
+		end
+	end
+
+	-- Running lines from z9, sidings and yards from z13
+	if railwayValues[railway] then
+		Layer("transportation", false)
+		Attribute("class", "rail")
+		SetZOrder()
+		SetBrunnelAttributes()
+		if Find("service")~="" then MinZoom(13) else MinZoom(9) end
+	end
+
+	-- Station buildings mapped as areas
+	if stationValues[railway] and isClosed then
+		WriteStation(railway)
+	end
+
+	-- Rivers
+	if (waterway=="river" or waterway=="canal") and not isClosed then
+		Layer("waterway", false)
+		Attribute("class", waterway)
+		MinZoom(10)
+	end
+
+	-- Water bodies; the sea comes from the coastline shapefile
+	if natural=="water" or landuse=="reservoir" or waterClasses[waterway] then
+		if Find("covered")=="yes" or not isClosed then return end
+		Layer("water", true)
+		SetMinZoomByArea()
+		if waterway~="" then Attribute("class", "river") else Attribute("class", "lake") end
+	end
+end
+
+function attribute_function(attr, layer)
+	return { class="ocean" }
+end
+
+-- ==========================================================
+-- Common functions
+
+-- Stations go to the 'poi' layer with the class the full profile gives them
+function WriteStation(railway)
+	LayerAsCentroid("poi")
+	SetNameAttributes()
+	AttributeNumeric("rank", 2)
+	Attribute("class", "railway")
+	Attribute("subclass", railway)
+end
+
+function SetNameAttributes()
+	Attribute(preferred_language_attribute, Find("name"))
+end
+
+function SetBrunnelAttributes()
+	if     Find("bridge") == "yes" then Attribute("brunnel", "bridge")
+	elseif Find("tunnel") == "yes" then Attribute("brunnel", "tunnel")
+	end
+end
+
+-- Set minimum zoom level by area; small water bodies wait until z13
+function SetMinZoomByArea()
+	local area=Area()
+	if     area>ZRES7^2  then MinZoom(8)
+	elseif area>ZRES8^2  then MinZoom(9)
+	elseif area>ZRES9^2  then MinZoom(10)
+	elseif area>ZRES10^2 then MinZoom(11)
+	elseif area>ZRES11^2 then MinZoom(12)
+	elseif area>ZRES12^2 then MinZoom(13)
+	else                      MinZoom(14) end
+end
+
+function SetZOrder()
+	local highway = Find("highway")
+	local layer = tonumber(Find("layer"))
+	local zOrder = 0
+	if Find("bridge") == "yes" then
+		zOrder = zOrder + 10
+	elseif Find("tunnel") == "yes" then
+		zOrder = zOrder - 10
+	end
+	if layer then
+		zOrder = zOrder + math.max(-7, math.min(7, layer)) * 10
+	end
+	if highway == "motorway" then
+		zOrder = zOrder + 9
+	elseif highway == "trunk" then
+		zOrder = zOrder + 8
+	elseif highway == "primary" then
+		zOrder = zOrder + 6
+	elseif highway == "secondary" then
+		zOrder = zOrder + 5
+	elseif highway == "tertiary" then
+		zOrder = zOrder + 4
+	else
+		zOrder = zOrder + 3
+	end
+	ZOrder(zOrder)
+end
+
+-- ==========================================================
+-- Lua utility functions
+
+function split(inputstr, sep) -- https://stackoverflow.com/a/7615129/4288232
+	if sep == nil then
+		sep = "%s"
+	end
+	local t={} ; i=1
+	for str in string.gmatch(inputstr, "([^"..sep.."]+)") do
+		t[i] = str
+		i = i + 1
+	end
+	return t
+end
+
+-- vim: tabstop=2 shiftwidth=2 noexpandtab
@@ -0,0 +1,138 @@
+// Times the hand-written vehicle validator in src/vehicles/validate.ts
+// against the zod schema it stands in front of. Pass a Snapper vehicle feed
+// response saved to a file to time a recorded fleet; without one, a
+// synthetic payload the size of the Metlink fleet is used.
+//
+// Usage: node bench/validate.mjs [path/to/fleet.json] [rounds]
+//
+// The TypeScript sources are loaded through Vite's SSR module loader, so
+// this needs nothing beyond the dev dependencies.
+
+import { readFileSync } from "node:fs";
+import { createServer } from "vite";
+
+const feedPath = process.argv[2];
+const rounds = Number(process.argv[3] ?? 200);
+const syntheticCount = 600;
+
+function syntheticVehicle(i) {
+  const seconds = String(i % 60).padStart(2, "0");
+  const nullable = i % 7 === 0;
+  return {
+    vehicleId: `NZMB-${3000 + i}`,
+    locationDetails: {
+      simpleLocationDetails: {
+        timestamp: `2025-01-14T03:12:${seconds}${i % 3 ? ".250" : ""}Z`,
+        lat: -41.29 + (i % 97) * 0.001,
+        lon: 174.78 + (i % 89) * 0.001,
+        bearing: nullable ? null : (i * 37) % 360,
+        bearingAccuracy: null,
+        speed: nullable ? null : (i % 20) * 0.9,
+        speedAccuracy: null,
+      },
+    },
+    tripDetails: {
+      tripId: nullable ? null : `${i % 40}__0__${100 + i}__MNM__${i % 9}`,
+      routeId: nullable ? null : String(100 + (i % 40)),
+      blockId: null,
+      tripShortName: null,
+      routeShortName: nullable ? null : String(i % 40),
+      tripStartTime: nullable ? null : "14:05:00",
+      currentPassengerCount: nullable ? null : i % 50,
+      totalPassengerCount: null,
+    },
+  };
+}
+
+function time(label, parse, payload) {
+  // Warm up so both paths are measured after the JIT has settled.
+  for (let round = 0; round < 20; round++) payload.forEach(parse);
+  const start = performance.now();
+  for (let round = 0; round < rounds; round++) payload.forEach(parse);
+  const perPoll = (performance.now() - start) / rounds;
+  console.log(`${label.padEnd(6)} ${perPoll.toFixed(3)} ms per poll`);
+  return perPoll;
+}
+
+/** The recorded feed at feedPath, or a synthetic fleet without one. */
+function loadPayload() {
+  if (!feedPath) {
+    return {
+      source: `synthetic fleet of ${syntheticCount} vehicles`,
+      payload: Array.from({ length: syntheticCount }, (_, i) =>
+        syntheticVehicle(i)
+      ),
+    };
+  }
+  const payload = JSON.parse(readFileSync(feedPath, "utf8"));
+  if (!Array.isArray(payload)) {
+    throw new Error(`${feedPath} is not a JSON array of vehicles`);
+  }
+  return { source: `recorded feed ${feedPath}`, payload };
+}
+
+function rejects(parse, raw) {
+  try {
+    parse(raw);
+    return false;
+  } catch {
+    return true;
+  }
+}
+
+const server = await createServer({
+  configFile: false,
+  logLevel: "error",
+  appType: "custom",
+  server: { middlewareMode: true },
+});
+try {
+  const { validateVehicleObservation } = await server.ssrLoadModule(
+    "/src/vehicles/validate.ts"
+  );
+  const { parseVehicleObservation, RawVehicleObservationSchema } =
+    await server.ssrLoadModule("/src/vehicles/observation.ts");
+  const zodParse = (raw) =>
+    parseVehicleObservation(RawVehicleObservationSchema.parse(raw));
+
+  const { source, payload: loaded } = loadPayload();
+  // A recorded feed may hold vehicles both validators reject; they are
+  // checked for agreement but left out of the timing, since they throw.
+  const payload = [];
+  for (const raw of loaded) {
+    if (rejects(zodParse, raw)) {
+      if (!rejects(validateVehicleObservation, raw)) {
+        throw new Error(`Only zod rejects ${raw?.vehicleId}`);
+      }
+      continue;
+    }
+    const fast = JSON.stringify(validateVehicleObservation(raw));
+    if (fast !== JSON.stringify(zodParse(raw))) {
+      throw new Error(`Validators disagree on ${raw.vehicleId}`);
+    }
+    payload.push(raw);
+  }
+  for (const timestamp of [
+    "2024-02-29T00:00:00Z",
+    "2023-02-29T00:00:00Z",
+    "2024-02-31T00:00:00Z",
+    "2024-04-31T12:00:00.5Z",
+    "2024-12-31T23:59:59.999Z",
+  ]) {
+    const raw = syntheticVehicle(1);
+    raw.locationDetails.simpleLocationDetails.timestamp = timestamp;
+    if (rejects(validateVehicleObservation, raw) !== rejects(zodParse, raw)) {
+      throw new Error(`Validators disagree on ${timestamp}`);
+    }
+  }
+
+  console.log(`Payload: ${source}`);
+  console.log(
+    `${payload.length} valid of ${loaded.length} vehicles, ${rounds} rounds`
+  );
+  const zodTime = time("zod", zodParse, payload);
+  const fastTime = time("fast", validateVehicleObservation, payload);
+  console.log(`fast path is ${(zodTime / fastTime).toFixed(1)}x faster`);
+} finally {
+  await server.close();
+}
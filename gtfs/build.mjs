@@ -0,0 +1,410 @@
+// Converts a GTFS zip into the compact index read by src/vehicles/gtfs.ts
+// and writes it to public/gtfs/metlink.bin, so Vite serves it alongside
+// the app. The layout is documented in gtfs.ts; keep the two in step.
+// Only the shapes of trips on the railbus routes in
+// src/vehicles/railbusRoutes.json are kept.
+//
+// Usage: node gtfs/build.mjs path/to/gtfs.zip
+//
+// Needs nothing beyond Node 20: the zip is read with zlib.
+
+import { mkdirSync, readFileSync, writeFileSync } from "node:fs";
+import { dirname, join } from "node:path";
+import { fileURLToPath } from "node:url";
+import { gzipSync, inflateRawSync } from "node:zlib";
+
+const magic = [0x52, 0x42, 0x47, 0x54]; // "RBGT"
+const version = 2;
+const positionScale = 1e6;
+
+/** Reads the named files out of a zip, ignoring everything else. */
+function unzip(zip, names) {
+  let end = zip.length - 22;
+  while (end >= 0 && zip.readUInt32LE(end) !== 0x06054b50) end--;
+  if (end < 0) throw new Error("Not a zip file");
+  const entries = zip.readUInt16LE(end + 10);
+  let offset = zip.readUInt32LE(end + 16);
+  const files = {};
+  for (let i = 0; i < entries; i++) {
+    if (zip.readUInt32LE(offset) !== 0x02014b50) {
+      throw new Error("Corrupt zip central directory");
+    }
+    const method = zip.readUInt16LE(offset + 10);
+    const compressedSize = zip.readUInt32LE(offset + 20);
+    const nameLength = zip.readUInt16LE(offset + 28);
+    const extraLength = zip.readUInt16LE(offset + 30);
+    const commentLength = zip.readUInt16LE(offset + 32);
+    const localOffset = zip.readUInt32LE(offset + 42);
+    const name = zip.toString("utf8", offset + 46, offset + 46 + nameLength);
+    offset += 46 + nameLength + extraLength + commentLength;
+
+    const base = name.slice(name.lastIndexOf("/") + 1);
+    if (!names.includes(base)) continue;
+    if (compressedSize === 0xffffffff) {
+      throw new Error(`${name} needs zip64, which isn't supported`);
+    }
+    const start =
+      localOffset +
+      30 +
+      zip.readUInt16LE(localOffset + 26) +
+      zip.readUInt16LE(localOffset + 28);
+    const data = zip.subarray(start, start + compressedSize);
+    if (method === 0) files[base] = data.toString("utf8");
+    else if (method === 8) files[base] = inflateRawSync(data).toString("utf8");
+    else throw new Error(`${name} uses unsupported compression ${method}`);
+  }
+  for (const name of names) {
+    if (!(name in files)) throw new Error(`Zip has no ${name}`);
+  }
+  return files;
+}
+
+function splitLine(line) {
+  if (!line.includes('"')) return line.split(",");
+  const values = [];
+  let value = "";
+  let quoted = false;
+  for (let i = 0; i < line.length; i++) {
+    const char = line[i];
+    if (quoted) {
+      if (char !== '"') value += char;
+      else if (line[i + 1] === '"') value += line[++i];
+      else quoted = false;
+    } else if (char === '"') quoted = true;
+    else if (char === ",") {
+      values.push(value);
+      value = "";
+    } else value += char;
+  }
+  values.push(value);
+  return values;
+}
+
+/** Rows of a GTFS CSV file as objects keyed by the header. */
+function* rows(text) {
+  const lines = text.split(/\r?\n/);
+  const header = splitLine(lines[0].replace(/^\uFEFF/, ""));
+  for (let i = 1; i < lines.length; i++) {
+    if (lines[i] === "") continue;
+    const fields = splitLine(lines[i]);
+    const row = {};
+    header.forEach((column, n) => (row[column] = fields[n] ?? ""));
+    yield row;
+  }
+}
+
+/** GTFS HH:MM:SS, which may run past 24:00, in seconds; NaN when blank. */
+function seconds(time) {
+  if (!time) return NaN;
+  const [h, m, s] = time.split(":").map(Number);
+  return h * 3600 + m * 60 + s;
+}
+
+class ByteWriter {
+  bytes = Buffer.alloc(1 << 16);
+  length = 0;
+
+  byte(value) {
+    if (this.length === this.bytes.length) {
+      const bytes = Buffer.alloc(this.bytes.length * 2);
+      this.bytes.copy(bytes);
+      this.bytes = bytes;
+    }
+    this.bytes[this.length++] = value;
+  }
+
+  varint(value) {
+    if (!Number.isInteger(value) || value < 0) {
+      throw new Error(`Can't write ${value} as a varint`);
+    }
+    while (value >= 0x80) {
+      this.byte((value % 0x80) | 0x80);
+      value = Math.floor(value / 0x80);
+    }
+    this.byte(value);
+  }
+
+  signed(value) {
+    this.varint(value < 0 ? -2 * value - 1 : 2 * value);
+  }
+
+  /** Index that may be -1 (no value), shifted up by one. */
+  optional(value) {
+    this.varint(value + 1);
+  }
+
+  text(value) {
+    const bytes = Buffer.from(value, "utf8");
+    this.varint(bytes.length);
+    for (const byte of bytes) this.byte(byte);
+  }
+
+  /**
+   * Sorted strings, each as the length of the prefix it shares with the one
+   * before and the rest. GTFS IDs share long prefixes, so this roughly
+   * halves them before gzip.
+   */
+  sortedTexts(values) {
+    this.varint(values.length);
+    let previous = "";
+    for (const value of values) {
+      let shared = 0;
+      const limit = Math.min(previous.length, value.length);
+      while (shared < limit && previous[shared] === value[shared]) shared++;
+      this.varint(shared);
+      this.text(value.slice(shared));
+      previous = value;
+    }
+  }
+
+  finish() {
+    return this.bytes.subarray(0, this.length);
+  }
+}
+
+/** Dedupes strings into indices; empty strings become -1. */
+class StringTable {
+  indices = new Map();
+  values = [];
+
+  intern(value) {
+    if (!value) return -1;
+    let index = this.indices.get(value);
+    if (index === undefined) {
+      index = this.values.length;
+      this.values.push(value);
+      this.indices.set(value, index);
+    }
+    return index;
+  }
+}
+
+/** Dedupes integer sequences into indices. */
+class SequenceTable {
+  indices = new Map();
+  values = [];
+
+  intern(sequence) {
+    const key = sequence.join(",");
+    let index = this.indices.get(key);
+    if (index === undefined) {
+      index = this.values.length;
+      this.values.push(sequence);
+      this.indices.set(key, index);
+    }
+    return index;
+  }
+}
+
+/** Whether a route falls in one of the ranges of a railbus route table. */
+function isRailbusRoute(routeId, railbusRoutes) {
+  const route = parseInt(routeId, 10);
+  return Object.values(railbusRoutes).some(
+    ({ start, end }) => route >= start && route <= end
+  );
+}
+
+function build(files, railbusRoutes) {
+  const strings = new StringTable();
+
+  const routes = [...rows(files["routes.txt"])].sort((a, b) =>
+    a.route_id < b.route_id ? -1 : a.route_id > b.route_id ? 1 : 0
+  );
+  const routeIndex = new Map(routes.map((route, i) => [route.route_id, i]));
+
+  const stops = [...rows(files["stops.txt"])].sort((a, b) =>
+    a.stop_id < b.stop_id ? -1 : a.stop_id > b.stop_id ? 1 : 0
+  );
+  const stopIndex = new Map(stops.map((stop, i) => [stop.stop_id, i]));
+
+  // Stop times grouped by trip, in stop_sequence order.
+  const stopTimes = new Map();
+  for (const row of rows(files["stop_times.txt"])) {
+    const stop = stopIndex.get(row.stop_id);
+    if (stop === undefined) throw new Error(`Unknown stop ${row.stop_id}`);
+    let list = stopTimes.get(row.trip_id);
+    if (list === undefined) stopTimes.set(row.trip_id, (list = []));
+    list.push([
+      Number(row.stop_sequence),
+      stop,
+      seconds(row.arrival_time),
+      seconds(row.departure_time),
+    ]);
+  }
+
+  const patterns = new SequenceTable();
+  const timings = new SequenceTable();
+  const trips = [];
+  const railbusShapes = new Set();
+  for (const row of rows(files["trips.txt"])) {
+    const route = routeIndex.get(row.route_id);
+    if (route === undefined) throw new Error(`Unknown route ${row.route_id}`);
+    if (row.shape_id && isRailbusRoute(row.route_id, railbusRoutes)) {
+      railbusShapes.add(row.shape_id);
+    }
+    const times = (stopTimes.get(row.trip_id) ?? []).sort(
+      (a, b) => a[0] - b[0]
+    );
+    // Blank times (non-timepoints) take the previous stop's departure.
+    let previous = NaN;
+    const offsets = [];
+    for (const [, , arrival, departure] of times) {
+      const a = isNaN(arrival) ? departure : arrival;
+      const d = isNaN(departure) ? a : departure;
+      offsets.push(isNaN(a) ? previous : a, isNaN(d) ? previous : d);
+      previous = isNaN(d) ? previous : d;
+    }
+    const start = offsets.find((time) => !isNaN(time)) ?? 0;
+    trips.push({
+      id: row.trip_id,
+      route,
+      service: strings.intern(row.service_id),
+      headsign: strings.intern(row.trip_headsign),
+      direction: row.direction_id === "" ? -1 : Number(row.direction_id),
+      shape: strings.intern(row.shape_id),
+      pattern: patterns.intern(times.map(([, stop]) => stop)),
+      timing: timings.intern(
+        offsets.map((time) => (isNaN(time) ? 0 : time - start))
+      ),
+      start,
+    });
+  }
+  trips.sort((a, b) => (a.id < b.id ? -1 : a.id > b.id ? 1 : 0));
+
+  // Shape points grouped by shape, in shape_pt_sequence order, keyed by the
+  // shape_id's string index so trips can find them by binary search.
+  const shapePoints = new Map();
+  for (const row of rows(files["shapes.txt"])) {
+    if (!railbusShapes.has(row.shape_id)) continue;
+    const shape = strings.intern(row.shape_id);
+    let list = shapePoints.get(shape);
+    if (list === undefined) shapePoints.set(shape, (list = []));
+    list.push([
+      Number(row.shape_pt_sequence),
+      Math.round(Number(row.shape_pt_lat) * positionScale),
+      Math.round(Number(row.shape_pt_lon) * positionScale),
+    ]);
+  }
+  const shapes = [...shapePoints]
+    .filter(([, points]) => points.length >= 2)
+    .sort(([a], [b]) => a - b);
+
+  const routeFields = routes.map((route) => [
+    strings.intern(route.route_short_name),
+    strings.intern(route.route_long_name),
+    Number(route.route_type || 3),
+    strings.intern(route.route_color),
+  ]);
+  const stopFields = stops.map((stop) => [
+    strings.intern(stop.stop_code),
+    strings.intern(stop.stop_name),
+  ]);
+
+  const writer = new ByteWriter();
+  for (const byte of magic) writer.byte(byte);
+  writer.byte(version);
+
+  writer.varint(strings.values.length);
+  for (const value of strings.values) writer.text(value);
+
+  writer.sortedTexts(routes.map((route) => route.route_id));
+  for (const [shortName, longName, type, colour] of routeFields) {
+    writer.optional(shortName);
+    writer.optional(longName);
+    writer.varint(type);
+    writer.optional(colour);
+  }
+
+  writer.sortedTexts(stops.map((stop) => stop.stop_id));
+  for (const [code, name] of stopFields) {
+    writer.optional(code);
+    writer.optional(name);
+  }
+  for (const column of ["stop_lat", "stop_lon"]) {
+    let previous = 0;
+    for (const stop of stops) {
+      const value = Math.round(Number(stop[column]) * positionScale);
+      writer.signed(value - previous);
+      previous = value;
+    }
+  }
+
+  writer.varint(patterns.values.length);
+  for (const pattern of patterns.values) {
+    writer.varint(pattern.length);
+    let previous = 0;
+    for (const stop of pattern) {
+      writer.signed(stop - previous);
+      previous = stop;
+    }
+  }
+
+  // Offsets alternate arrival, departure and never go backwards.
+  writer.varint(timings.values.length);
+  for (const timing of timings.values) {
+    writer.varint(timing.length / 2);
+    let previous = 0;
+    for (const time of timing) {
+      writer.signed(time - previous);
+      previous = time;
+    }
+  }
+
+  writer.sortedTexts(trips.map((trip) => trip.id));
+  for (const trip of trips) {
+    writer.varint(trip.route);
+    writer.optional(trip.service);
+    writer.optional(trip.headsign);
+    writer.optional(trip.direction);
+    writer.optional(trip.shape);
+    writer.varint(trip.pattern);
+    writer.varint(trip.timing);
+    writer.varint(trip.start);
+  }
+
+  // Each shape restarts its deltas from zero, so it can be read on its own.
+  writer.varint(shapes.length);
+  for (const [shape, points] of shapes) {
+    writer.varint(shape);
+    writer.varint(points.length);
+    points.sort((a, b) => a[0] - b[0]);
+    let previousLat = 0;
+    let previousLon = 0;
+    for (const [, lat, lon] of points) {
+      writer.signed(lat - previousLat);
+      writer.signed(lon - previousLon);
+      previousLat = lat;
+      previousLon = lon;
+    }
+  }
+
+  console.log(
+    `${routes.length} routes, ${stops.length} stops, ${trips.length} trips` +
+      ` in ${patterns.values.length} stop patterns` +
+      ` and ${timings.values.length} timings,` +
+      ` ${shapes.length} railbus shapes`
+  );
+  return gzipSync(writer.finish(), { level: 9 });
+}
+
+const input = process.argv[2];
+if (!input) {
+  console.error("usage: node gtfs/build.mjs gtfs.zip");
+  process.exit(1);
+}
+const here = dirname(fileURLToPath(import.meta.url));
+const out = join(here, "../public/gtfs/metlink.bin");
+const files = unzip(readFileSync(input), [
+  "routes.txt",
+  "stops.txt",
+  "trips.txt",
+  "stop_times.txt",
+  "shapes.txt",
+]);
+const railbusRoutes = JSON.parse(
+  readFileSync(join(here, "../src/vehicles/railbusRoutes.json"), "utf8")
+);
+const index = build(files, railbusRoutes);
+mkdirSync(dirname(out), { recursive: true });
+writeFileSync(out, index);
+console.log(`Wrote ${index.length} bytes to ${out}`);
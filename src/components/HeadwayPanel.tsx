@@ -0,0 +1,112 @@
+import { HeadwayLine, HeadwayVehicle } from "../vehicles/headway";
+import { RailbusRouteTable } from "../vehicles/railbus";
+
+const width = 220;
+const labelWidth = 36;
+const rowHeight = 30;
+// Vehicles heading out are drawn above the line, those heading back below.
+const laneOffset = 6;
+const statusColours: Record<HeadwayVehicle["status"], string> = {
+  ok: "#333",
+  bunched: "#d62728",
+  gap: "#ff7f0e",
+};
+
+interface HeadwayPanelProps {
+  lines: HeadwayLine[];
+  routes: RailbusRouteTable;
+}
+
+function formatGap(metres: number | null): string {
+  if (metres === null) return "no vehicle ahead";
+  return metres < 1000
+    ? `${Math.round(metres)} m to the vehicle ahead`
+    : `${(metres / 1000).toFixed(1)} km to the vehicle ahead`;
+}
+
+function VehicleMark({
+  vehicle,
+  x,
+  y,
+  colour,
+}: {
+  vehicle: HeadwayVehicle;
+  x: number;
+  y: number;
+  colour: string;
+}) {
+  const flagged = vehicle.status !== "ok";
+  return (
+    <circle
+      cx={x}
+      cy={y}
+      r={flagged ? 4 : 3}
+      fill={colour}
+      stroke={statusColours[vehicle.status]}
+      strokeWidth={flagged ? 2 : 0.5}
+    >
+      <title>
+        {vehicle.vehicleId}: {formatGap(vehicle.gap)}
+        {vehicle.status === "bunched" && " (bunched)"}
+        {vehicle.status === "gap" && " (large gap)"}
+      </title>
+    </circle>
+  );
+}
+
+/**
+ * One strip per railbus line with its stations as ticks and its vehicles
+ * along it, so bunching and holes in the service show at a glance.
+ */
+export default function HeadwayPanel({ lines, routes }: HeadwayPanelProps) {
+  if (lines.length === 0) return null;
+  const scale = (line: HeadwayLine) => (width - labelWidth - 8) / line.length;
+
+  return (
+    <div className="headway-panel">
+      <svg width={width} height={lines.length * rowHeight}>
+        {lines.map((line, row) => {
+          const colour = routes[line.lineName]?.colour ?? "#888";
+          const y = row * rowHeight + rowHeight / 2;
+          const x = (chainage: number) => labelWidth + chainage * scale(line);
+          return (
+            <g key={line.lineName}>
+              <text x={0} y={y + 4} fontWeight="bold">
+                {line.lineName}
+              </text>
+              <line
+                x1={x(0)}
+                x2={x(line.length)}
+                y1={y}
+                y2={y}
+                stroke={colour}
+                strokeWidth={2}
+              />
+              {line.stations.map((station) => (
+                <line
+                  key={station.name}
+                  x1={x(station.chainage)}
+                  x2={x(station.chainage)}
+                  y1={y - 3}
+                  y2={y + 3}
+                  stroke="#555"
+                >
+                  <title>{station.name}</title>
+                </line>
+              ))}
+              {line.vehicles.map((vehicle) => (
+                <VehicleMark
+                  key={vehicle.vehicleId}
+                  vehicle={vehicle}
+                  x={x(vehicle.chainage)}
+                  y={y - vehicle.direction * laneOffset}
+                  colour={colour}
+                />
+              ))}
+            </g>
+          );
+        })}
+      </svg>
+    </div>
+  );
+}
@@ -0,0 +1,87 @@
+import { ReplayState } from "../vehicles/replay";
+
+const speeds = [1, 5, 10, 30, 60];
+
+interface ReplayControlsProps {
+  state: ReplayState | null;
+  onOpen: () => void;
+  onControl: (change: {
+    playing?: boolean;
+    speed?: number;
+    time?: number;
+  }) => void;
+  onClose: () => void;
+  onExport: () => void;
+  onImport: (file: File) => void;
+}
+
+function formatTime(time: number): string {
+  return new Date(time).toLocaleTimeString([], {
+    hour: "2-digit",
+    minute: "2-digit",
+    second: "2-digit",
+  });
+}
+
+export default function ReplayControls({
+  state,
+  onOpen,
+  onControl,
+  onClose,
+  onExport,
+  onImport,
+}: ReplayControlsProps) {
+  const importButton = (
+    <label className="replay-import">
+      Import
+      <input
+        type="file"
+        accept=".rbr"
+        onChange={(e) => {
+          const file = e.target.files?.[0];
+          if (file) onImport(file);
+          e.target.value = "";
+        }}
+      />
+    </label>
+  );
+
+  if (state === null) {
+    return (
+      <div className="replay-controls">
+        <button onClick={onOpen}>Replay</button>
+        {importButton}
+      </div>
+    );
+  }
+
+  return (
+    <div className="replay-controls">
+      <button onClick={() => onControl({ playing: !state.playing })}>
+        {state.playing ? "Pause" : "Play"}
+      </button>
+      <select
+        value={state.speed}
+        onChange={(e) => onControl({ speed: Number(e.target.value) })}
+      >
+        {speeds.map((speed) => (
+          <option key={speed} value={speed}>
+            {speed}×
+          </option>
+        ))}
+      </select>
+      <input
+        type="range"
+        min={state.start}
+        max={state.end}
+        step={1000}
+        value={state.time}
+        onChange={(e) => onControl({ time: Number(e.target.value) })}
+      />
+      <span className="replay-time">{formatTime(state.time)}</span>
+      <button onClick={onExport}>Export</button>
+      {importButton}
+      <button onClick={onClose}>Live</button>
+    </div>
+  );
+}
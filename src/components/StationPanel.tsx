@@ -0,0 +1,83 @@
+import { StationArrival } from "../vehicles/predictions";
+import { RailStation } from "../vehicles/stations";
+
+export interface NearbyVehicle {
+  vehicleId: string;
+  lineName: string | null;
+  /** Where the vehicle's trip is headed, from the GTFS index. */
+  headsign: string | null;
+  distance: number;
+}
+
+interface StationPanelProps {
+  stations: RailStation[];
+  selected: number | null;
+  vehicles: NearbyVehicle[];
+  /** Predicted railbus arrivals at the selected station. */
+  arrivals: StationArrival[];
+  /** Time the predictions were made, in epoch milliseconds. */
+  predictedAt: number;
+  onSelect: (station: number | null) => void;
+}
+
+/** When the vehicle arrives, to follow "… to {destination}". */
+function formatArrival(arrival: number, now: number): string {
+  const minutes = Math.round((arrival - now) / 60000);
+  return minutes <= 0 ? "due now" : `in ${minutes} min`;
+}
+
+function formatDistance(metres: number): string {
+  return metres < 1000
+    ? `${Math.round(metres)} m`
+    : `${(metres / 1000).toFixed(1)} km`;
+}
+
+export default function StationPanel({
+  stations,
+  selected,
+  vehicles,
+  arrivals,
+  predictedAt,
+  onSelect,
+}: StationPanelProps) {
+  return (
+    <div className="station-panel">
+      <select
+        value={selected ?? ""}
+        onChange={(e) =>
+          onSelect(e.target.value === "" ? null : Number(e.target.value))
+        }
+      >
+        <option value="">Vehicles near station…</option>
+        {stations.map((station, index) => (
+          <option key={station.name} value={index}>
+            {station.name}
+          </option>
+        ))}
+      </select>
+      {selected !== null && arrivals.length > 0 && (
+        <ul className="station-arrivals">
+          {arrivals.map((arrival) => (
+            <li key={arrival.vehicleId}>
+              <strong>{arrival.lineName}</strong> to{" "}
+              {arrival.destination}{" "}
+              {formatArrival(arrival.arrival, predictedAt)}
+            </li>
+          ))}
+        </ul>
+      )}
+      {selected !== null && (
+        <ul>
+          {vehicles.map((vehicle) => (
+            <li key={vehicle.vehicleId}>
+              <strong>{vehicle.lineName ?? "Not in service"}</strong>{" "}
+              {vehicle.headsign && `to ${vehicle.headsign} `}
+              {vehicle.vehicleId} · {formatDistance(vehicle.distance)}
+            </li>
+          ))}
+          {vehicles.length === 0 && <li>No vehicles nearby</li>}
+        </ul>
+      )}
+    </div>
+  );
+}
@@ -1,125 +1,169 @@
-import maplibre, { MapGeoJSONFeature, MapMouseEvent } from "maplibre-gl";
+import maplibre, { MapMouseEvent } from "maplibre-gl";
 import React, { useEffect, useState } from "react";
-import { z } from "zod";
+import { setBasemap } from "../map/basemap";
+import { addRailOverlay, setRailOverlayRoutes } from "../map/railOverlay";
+import { VehicleLayer } from "../map/vehicleLayer";
+import { NotInServiceStyle } from "../vehicles/frame";
+import { Bounds, distanceMetres } from "../vehicles/geo";
+import { HeadwayLine } from "../vehicles/headway";
+import {
+  VehicleWorkerRequest,
+  VehicleWorkerResponse,
+} from "../vehicles/messages";
+import { StationArrivals } from "../vehicles/predictions";
+import { railbusColourExpression, RailbusRoutes } from "../vehicles/railbus";
+import { ReplayState } from "../vehicles/replay";
+import { RailStations } from "../vehicles/stations";
+import VehicleWorker from "../vehicles/vehicleWorker?worker&inline";
+import HeadwayPanel from "./HeadwayPanel";
+import ReplayControls from "./ReplayControls";
+import StationPanel, { NearbyVehicle } from "./StationPanel";
 
-interface VehicleObservation {
-  vehicleId: string;
-  timestamp: string;
-  lat: number;
-  lon: number;
-  tripId: string | null;
-  routeId: string | null;
-  railbusRouteName: string | null;
-  tripStartTime: string | null;
-  currentPassengerCount: number | null;
-  totalPassengerCount: number | null;
-}
-
-const RawVehicleObservationSchema = z.object({
-  vehicleId: z.string(),
-  locationDetails: z.object({
-    simpleLocationDetails: z.object({
-      timestamp: z.string().datetime(),
-      lat: z.number().gte(-90).lte(90),
-      lon: z.number().gte(-180).lte(180),
-      bearing: z.number().nullable(),
-      bearingAccuracy: z.number().nullable(),
-      speed: z.number().nullable(),
-      speedAccuracy: z.number().nullable(),
-    }),
-  }),
-  tripDetails: z.object({
-    tripId: z.string().nullable(),
-    routeId: z.string().nullable(),
-    blockId: z.string().nullable(),
-    tripShortName: z.string().nullable(),
-    routeShortName: z.string().nullable(),
-    tripStartTime: z.string().nullable(),
-    currentPassengerCount: z.number().nullable(),
-    totalPassengerCount: z.number().nullable(),
-  }),
-});
-
-function parseVehicleObservation(
-  raw: z.infer<typeof RawVehicleObservationSchema>
-): VehicleObservation {
-  return {
-    vehicleId: raw.vehicleId.slice(5),
-    timestamp: raw.locationDetails.simpleLocationDetails.timestamp,
-    lat: raw.locationDetails.simpleLocationDetails.lat,
-    lon: raw.locationDetails.simpleLocationDetails.lon,
-    tripId: raw.tripDetails.tripId,
-    routeId: raw.tripDetails.routeId,
-    railbusRouteName: null,
-    tripStartTime: raw.tripDetails.tripStartTime,
-    currentPassengerCount: raw.tripDetails.currentPassengerCount,
-    totalPassengerCount: raw.tripDetails.totalPassengerCount,
-  };
-}
+const trailSourceId = "vehicle-trails";
+const nearbyCount = 5;
 
-async function fetchVehicles(): Promise<VehicleObservation[]> {
-  const response = await fetch(import.meta.env.VITE_SNAPPER_API_URL, {
-    headers: {
-      "x-api-key": import.meta.env.VITE_SNAPPER_API_KEY,
-    },
+export default function VehicleMap() {
+  const mapRef = React.useRef<maplibregl.Map | null>(null);
+  const workerRef = React.useRef<Worker | null>(null);
+  // Created once, not on every render.
+  const [vehicleLayer] = useState(() => new VehicleLayer(RailbusRoutes));
+  const railbusRoutesRef = React.useRef(RailbusRoutes);
+  const trailsRef = React.useRef<GeoJSON.FeatureCollection>({
+    type: "FeatureCollection",
+    features: [],
   });
-  if (!response.ok) {
-    throw new Error(`HTTP error! Status: ${response.status}`);
-  }
-  const data = await response.json();
-  const parsedData = z
-    .array(RawVehicleObservationSchema)
-    .parse(data)
-    .map((rawObservation) => parseVehicleObservation(rawObservation));
-  return parsedData;
-}
+  const lastFrameRef = React.useRef<number | null>(null);
+  const [replayState, setReplayState] = useState<ReplayState | null>(null);
+  const stationRef = React.useRef<number | null>(null);
+  const [station, setStation] = useState<number | null>(null);
+  const [nearby, setNearby] = useState<NearbyVehicle[]>([]);
+  const [headways, setHeadways] = useState<HeadwayLine[]>([]);
+  const [arrivals, setArrivals] = useState<{
+    time: number;
+    stations: StationArrivals[];
+  }>({ time: 0, stations: [] });
+  const pollRate = 5000;
 
-const RailbusRoutes: {
-  [key: string]: { start: number; end: number; colour: string };
-} = {
-  KPL: { start: 23, end: 29, colour: "#d4d110" },
-  MEL: { start: 33, end: 39, colour: "#ffab2f" },
-  WRL: { start: 43, end: 49, colour: "#feca0a" },
-  HVL: { start: 53, end: 59, colour: "#ffab2f" },
-  JVL: { start: 63, end: 69, colour: "#42c3dc" },
-};
+  // Lists the vehicles nearest the selected station, from the layer's
+  // spatial index.
+  const updateNearby = () => {
+    if (stationRef.current === null) return;
+    const { lat, lon } = RailStations[stationRef.current];
+    setNearby(
+      vehicleLayer.nearest([lon, lat], nearbyCount).map((index) => {
+        const position = vehicleLayer.lngLat(index);
+        return {
+          vehicleId: vehicleLayer.vehicleId(index),
+          lineName: vehicleLayer.lineName(index),
+          headsign: vehicleLayer.headsign(index),
+          distance: distanceMetres(lat, lon, position.lat, position.lng),
+        };
+      })
+    );
+  };
 
-function addRailbusRouteName(
-  vehicles: VehicleObservation[]
-): VehicleObservation[] {
-  return vehicles.map((vehicle) => {
-    if (vehicle.routeId === null) return vehicle;
-    const routeId = parseInt(vehicle.routeId, 10);
-    for (const [railLineName, range] of Object.entries(RailbusRoutes)) {
-      if (routeId >= range.start && routeId <= range.end) {
-        return { ...vehicle, railbusRouteName: railLineName };
-      }
-    }
-    return vehicle;
-  });
-}
+  const selectStation = (index: number | null) => {
+    stationRef.current = index;
+    setStation(index);
+    if (index === null) return;
+    const { lat, lon } = RailStations[index];
+    mapRef.current?.easeTo({ center: [lon, lat], zoom: 14 });
+    updateNearby();
+  };
 
-export default function VehicleMap() {
-  const [vehicles, setVehicles] = useState<VehicleObservation[]>([]);
-  const mapRef = React.useRef<maplibregl.Map | null>(null);
-  const pollRate = 5000;
+  const postToWorker = (request: VehicleWorkerRequest) => {
+    workerRef.current?.postMessage(request);
+  };
 
   useEffect(() => {
-    const updateVehicles = async () => {
-      try {
-        const fetchedVehicles = await fetchVehicles();
-        console.log(`Fetched ${fetchedVehicles.length} vehicles`);
-        const processedVehicles = addRailbusRouteName(fetchedVehicles);
-        setVehicles(processedVehicles);
-      } catch (error) {
-        console.error("Error fetching bus data:", error);
+    const worker = new VehicleWorker();
+    workerRef.current = worker;
+
+    worker.onmessage = (event: MessageEvent<VehicleWorkerResponse>) => {
+      const response = event.data;
+      if (response.type === "error") {
+        console.error("Error fetching bus data:", response.message);
+        return;
+      }
+      if (response.type === "routes") {
+        railbusRoutesRef.current = response.routes;
+        vehicleLayer.setRoutes(response.routes);
+        if (mapRef.current?.getLayer("railbusTrails")) {
+          mapRef.current.setPaintProperty(
+            "railbusTrails",
+            "line-color",
+            railbusColourExpression(response.routes)
+          );
+        }
+        if (mapRef.current) {
+          setRailOverlayRoutes(mapRef.current, response.routes);
+        }
+        return;
+      }
+      if (response.type === "arrivals") {
+        setArrivals({ time: response.time, stations: response.stations });
+        return;
+      }
+      if (response.type === "headways") {
+        setHeadways(response.lines);
+        return;
+      }
+      if (response.type === "trails") {
+        trailsRef.current = response.trails;
+        const source = mapRef.current?.getSource(trailSourceId) as
+          | maplibregl.GeoJSONSource
+          | undefined;
+        source?.setData(response.trails);
+        return;
+      }
+      if (response.type === "recordingExport") {
+        const url = URL.createObjectURL(new Blob([response.data]));
+        const link = document.createElement("a");
+        link.href = url;
+        link.download = `railbus-${new Date().toISOString()}.rbr`;
+        link.click();
+        setTimeout(() => URL.revokeObjectURL(url));
+        return;
+      }
+      if (response.type === "replayState") {
+        setReplayState(response.state);
+        return;
+      }
+      if (response.type === "frame") {
+        // Animate over the gap since the previous frame, so vehicles arrive
+        // at their observed positions just as the next poll lands.
+        const now = performance.now();
+        const duration =
+          lastFrameRef.current === null
+            ? 0
+            : Math.min(now - lastFrameRef.current, pollRate * 3);
+        lastFrameRef.current = now;
+        vehicleLayer.setFrame(response.frame, now, duration);
+        updateNearby();
       }
     };
 
-    updateVehicles();
-    const intervalId = setInterval(updateVehicles, pollRate);
+    worker.postMessage({
+      type: "start",
+      pollRate,
+      // The worker runs from a blob URL, so relative URLs need the page's.
+      baseUrl: document.baseURI,
+    } satisfies VehicleWorkerRequest);
 
-    return () => clearInterval(intervalId);
+    const onVisibilityChange = () => {
+      worker.postMessage({
+        type: "visibility",
+        hidden: document.visibilityState === "hidden",
+      } satisfies VehicleWorkerRequest);
+    };
+    onVisibilityChange();
+    document.addEventListener("visibilitychange", onVisibilityChange);
+
+    return () => {
+      document.removeEventListener("visibilitychange", onVisibilityChange);
+      worker.terminate();
+      workerRef.current = null;
+    };
   }, []);
 
   useEffect(() => {
@@ -127,136 +171,95 @@ export default function VehicleMap() {
 
     mapRef.current = new maplibre.Map({
       container: "map",
-      style: "https://tiles.stadiamaps.com/styles/alidade_smooth.json",
       center: [174.85, -41.25],
       zoom: 11,
       attributionControl: false,
       maxBounds: [174.45, -41.7, 176.5, -40.7], // [west, south, east, north]
       minZoom: 9,
     });
+    setBasemap(mapRef.current).catch((error) =>
+      console.error("Error loading basemap:", error)
+    );
 
     mapRef.current.on("load", () => {
       if (!mapRef.current) {
         return;
       }
-      const sourceId = "vehicle-locations";
-
-      mapRef.current.addSource(sourceId, {
+      mapRef.current.addSource(trailSourceId, {
         type: "geojson",
-        data: {
-          type: "FeatureCollection",
-          features: [],
-        },
-      });
-
-      mapRef.current.addLayer({
-        id: "notinservicePoints",
-        type: "circle",
-        source: sourceId,
-        paint: {
-          "circle-radius": 5,
-          "circle-color": "#808080",
-          "circle-opacity": 0.8,
-          "circle-stroke-color": "#ffffff",
-          "circle-stroke-width": 1,
-          "circle-stroke-opacity": 0.5,
-        },
-        filter: ["==", ["get", "routeId"], ""],
-      });
-
-      mapRef.current.addLayer({
-        id: "railbusPoints",
-        type: "circle",
-        source: sourceId,
-        paint: {
-          "circle-radius": 10,
-          "circle-color": [
-            "match",
-            ["get", "railbusRouteName"],
-            "KPL",
-            RailbusRoutes.KPL.colour,
-            "MEL",
-            RailbusRoutes.MEL.colour,
-            "WRL",
-            RailbusRoutes.WRL.colour,
-            "HVL",
-            RailbusRoutes.HVL.colour,
-            "JVL",
-            RailbusRoutes.JVL.colour,
-            "#FF0000",
-          ],
-          "circle-opacity": 0.8,
-          "circle-stroke-color": "#ffffff",
-          "circle-stroke-width": 1,
-          "circle-stroke-opacity": 0.5,
-        },
-        filter: ["!=", ["get", "railbusRouteName"], ""],
+        data: trailsRef.current,
       });
 
       mapRef.current.addLayer({
-        id: "railbusLabels",
-        type: "symbol",
-        source: sourceId,
+        id: "railbusTrails",
+        type: "line",
+        source: trailSourceId,
         layout: {
-          "text-field": [
-            "format",
-            ["get", "railbusRouteName"],
-            { "text-font": ["literal", ["Stadia Bold"]] },
-            ", Trip ID: ",
-            { "text-font": ["literal", ["Stadia Regular"]] },
-            ["get", "tripId"],
-            { "text-font": ["literal", ["Stadia Regular"]] },
-            ", Vehicle ID: ",
-            { "text-font": ["literal", ["Stadia Regular"]] },
-            ["get", "vehicleId"],
-            { "text-font": ["literal", ["Stadia Regular"]] },
-          ],
-          "text-anchor": "left",
-          "text-radial-offset": 1,
-          "text-justify": "left",
-          "text-size": 14,
+          "line-cap": "round",
+          "line-join": "round",
         },
         paint: {
-          "text-color": "#000000",
-          "text-halo-color": "#ffffff",
-          "text-halo-width": 1,
+          "line-color": railbusColourExpression(railbusRoutesRef.current),
+          "line-width": 3,
+          "line-opacity": 0.5,
         },
-        filter: ["!=", ["get", "railbusRouteName"], ""],
       });
-    });
-
-    mapRef.current.on(
-      "click",
-      "notinservicePoints",
-      (e: MapMouseEvent & { features?: MapGeoJSONFeature[] }) => {
-        if (!mapRef.current || !e.features || e.features.length === 0) return;
 
-        const feat = e.features[0];
-        const geom = feat.geometry;
+      mapRef.current.addLayer(vehicleLayer);
 
-        if (geom.type !== "Point") return;
+      const map = mapRef.current;
+      addRailOverlay(map, railbusRoutesRef.current, "railbusTrails")
+        // The route table may have changed while pmtiles was loading.
+        .then(() => setRailOverlayRoutes(map, railbusRoutesRef.current))
+        .catch((error) => console.error("Error adding rail overlay:", error));
+    });
 
-        new maplibre.Popup()
-          .setLngLat(geom.coordinates as [number, number])
-          .setHTML(`Vehicle ID: ${feat.properties?.vehicleId}`)
-          .addTo(mapRef.current);
-      }
-    );
+    // Only out-of-service vehicles get a popup; railbus vehicles are labelled.
+    const outOfServiceVehicleAt = (point: maplibregl.Point) => {
+      const index = vehicleLayer.pick(point);
+      return index >= 0 && vehicleLayer.style(index) === NotInServiceStyle
+        ? index
+        : -1;
+    };
 
-    // Change the cursor to a pointer when the mouse is over the places layer.
-    mapRef.current.on("mouseenter", "notinservicePoints", () => {
-      if (!mapRef.current) {
+    mapRef.current.on("click", (e: MapMouseEvent) => {
+      if (!mapRef.current) return;
+      const cluster = vehicleLayer.pickCluster(e.point);
+      if (cluster !== null) {
+        mapRef.current.easeTo({
+          center: cluster,
+          zoom: mapRef.current.getZoom() + 2,
+        });
         return;
       }
-      mapRef.current.getCanvas().style.cursor = "pointer";
+      const index = outOfServiceVehicleAt(e.point);
+      if (index < 0) return;
+
+      new maplibre.Popup()
+        .setLngLat(vehicleLayer.lngLat(index))
+        .setHTML(`Vehicle ID: ${vehicleLayer.vehicleId(index)}`)
+        .addTo(mapRef.current);
     });
 
-    // Change it back to a pointer when it leaves.
-    mapRef.current.on("mouseleave", "notinservicePoints", () => {
+    const postViewport = () => {
+      if (!mapRef.current) return;
+      workerRef.current?.postMessage({
+        type: "viewport",
+        bounds: mapRef.current.getBounds().toArray().flat() as Bounds,
+      } satisfies VehicleWorkerRequest);
+    };
+    mapRef.current.on("load", postViewport);
+    mapRef.current.on("moveend", postViewport);
+
+    // Change the cursor to a pointer when the mouse is over a vehicle.
+    mapRef.current.on("mousemove", (e: MapMouseEvent) => {
       if (!mapRef.current) {
         return;
       }
-      mapRef.current.getCanvas().style.cursor = "";
+      const target =
+        vehicleLayer.pickCluster(e.point) !== null ||
+        outOfServiceVehicleAt(e.point) >= 0;
+      mapRef.current.getCanvas().style.cursor = target ? "pointer" : "";
     });
 
     return () => {
@@ -266,34 +269,41 @@ export default function VehicleMap() {
     };
   }, []);
 
-  useEffect(() => {
-    const sourceId = "vehicle-locations";
-
-    if (!mapRef.current || !mapRef.current.getSource(sourceId)) return;
-
-    const geoJsonData: GeoJSON.FeatureCollection<GeoJSON.Point> = {
-      type: "FeatureCollection",
-      features: vehicles.map((vehicle) => ({
-        type: "Feature",
-        geometry: {
-          type: "Point",
-          coordinates: [vehicle.lon, vehicle.lat],
-        },
-        properties: {
-          vehicleId: vehicle.vehicleId,
-          tripId: vehicle.tripId,
-          routeId: vehicle.routeId || "",
-          railbusRouteName: vehicle.railbusRouteName || "",
-          currentPassengerCount: vehicle.currentPassengerCount || "",
-          totalPassengerCount: vehicle.totalPassengerCount || "",
-        },
-      })),
-    };
-    const source = mapRef.current.getSource(
-      sourceId
-    ) as maplibregl.GeoJSONSource;
-    source.setData(geoJsonData);
-  }, [vehicles]);
+  const stationArrivals =
+    station === null
+      ? []
+      : arrivals.stations.find(
+          ({ station: name }) => name === RailStations[station].name
+        )?.arrivals ?? [];
 
-  return <div id="map" />;
+  return (
+    <>
+      <div id="map" />
+      <StationPanel
+        stations={RailStations}
+        selected={station}
+        vehicles={nearby}
+        arrivals={stationArrivals}
+        predictedAt={arrivals.time}
+        onSelect={selectStation}
+      />
+      <HeadwayPanel lines={headways} routes={railbusRoutesRef.current} />
+      <ReplayControls
+        state={replayState}
+        onOpen={() => postToWorker({ type: "replayOpen" })}
+        onControl={(change) =>
+          postToWorker({ type: "replayControl", ...change })
+        }
+        onClose={() => postToWorker({ type: "replayClose" })}
+        onExport={() => postToWorker({ type: "replayExport" })}
+        onImport={async (file) => {
+          const data = await file.arrayBuffer();
+          workerRef.current?.postMessage(
+            { type: "replayImport", data } satisfies VehicleWorkerRequest,
+            [data]
+          );
+        }}
+      />
+    </>
+  );
 }
@@ -0,0 +1,72 @@
+import maplibre, {
+  type Map as MaplibreMap,
+  type StyleSpecification,
+} from "maplibre-gl";
+
+const remoteStyle = "https://tiles.stadiamaps.com/styles/alidade_smooth.json";
+
+let protocolAdded: Promise<void> | null = null;
+
+/**
+ * Lets MapLibre load pmtiles:// sources; safe to call more than once. The
+ * pmtiles module is only loaded once something asks for it, so maps
+ * without a local basemap or overlay never evaluate it.
+ */
+export function addPmtilesProtocol(): Promise<void> {
+  protocolAdded ??= import("pmtiles").then(({ Protocol }) => {
+    maplibre.addProtocol("pmtiles", new Protocol().tile);
+  });
+  return protocolAdded;
+}
+
+function resolve(url: string, base: string): string {
+  const pmtiles = "pmtiles://";
+  if (url.startsWith(pmtiles)) {
+    return pmtiles + new URL(url.slice(pmtiles.length), base).href;
+  }
+  // Keep URL templates like {fontstack} unescaped.
+  return decodeURI(new URL(url, base).href);
+}
+
+/** Makes a style's tile, glyph and sprite URLs absolute against base. */
+function resolveStyle(
+  style: StyleSpecification,
+  base: string
+): StyleSpecification {
+  const sources = Object.fromEntries(
+    Object.entries(style.sources).map(([id, source]) => [
+      id,
+      "url" in source && source.url
+        ? { ...source, url: resolve(source.url, base) }
+        : source,
+    ])
+  );
+  return {
+    ...style,
+    sources,
+    glyphs: style.glyphs && resolve(style.glyphs, base),
+    sprite:
+      typeof style.sprite === "string"
+        ? resolve(style.sprite, base)
+        : style.sprite,
+  };
+}
+
+/**
+ * Loads the basemap style into the map. Set VITE_BASEMAP_STYLE_URL to
+ * basemap/style.json after running `npm run basemap` to serve the tiles,
+ * style and fonts from the same origin instead of the Stadia CDN.
+ */
+export async function setBasemap(map: MaplibreMap) {
+  const url = import.meta.env.VITE_BASEMAP_STYLE_URL;
+  if (!url) {
+    map.setStyle(remoteStyle);
+    return;
+  }
+  await addPmtilesProtocol();
+  const base = new URL(url, document.baseURI).href;
+  // The local style's URLs are relative to the style itself.
+  map.setStyle(base, {
+    transformStyle: (_previous, next) => resolveStyle(next, base),
+  });
+}
@@ -0,0 +1,98 @@
+export interface Glyph {
+  /** Texture coordinates of the glyph's cell in the atlas. */
+  u0: number;
+  v0: number;
+  u1: number;
+  v1: number;
+  /** Cell size and pen advance in CSS pixels. */
+  width: number;
+  height: number;
+  advance: number;
+}
+
+export type GlyphFont = "regular" | "bold";
+
+const firstCharCode = 32;
+const lastCharCode = 126;
+const atlasWidth = 1024;
+
+/**
+ * Printable ASCII rendered once into a canvas, with the white halo the
+ * labels need baked in, so label text can be drawn as textured quads.
+ */
+export class GlyphAtlas {
+  readonly canvas: HTMLCanvasElement;
+  readonly lineHeight: number;
+  private readonly glyphs: { [font in GlyphFont]: Map<string, Glyph> } = {
+    regular: new Map(),
+    bold: new Map(),
+  };
+
+  constructor(fontSize: number, fontFamily: string, scale: number) {
+    const padding = 2;
+    const halo = 1;
+    this.lineHeight = Math.ceil(fontSize * 1.3);
+    const cellHeight = this.lineHeight + padding * 2;
+
+    const measure = document.createElement("canvas").getContext("2d");
+    if (measure === null) throw new Error("Canvas 2D is not available");
+
+    const fonts: [GlyphFont, string][] = [
+      ["regular", `${fontSize}px ${fontFamily}`],
+      ["bold", `bold ${fontSize}px ${fontFamily}`],
+    ];
+    const cells: [GlyphFont, string, string, number, number, number][] = [];
+    let x = 0;
+    let y = 0;
+    for (const [font, css] of fonts) {
+      measure.font = css;
+      for (let code = firstCharCode; code <= lastCharCode; code++) {
+        const char = String.fromCharCode(code);
+        const advance = measure.measureText(char).width;
+        const width = Math.ceil(advance) + padding * 2;
+        if ((x + width) * scale > atlasWidth) {
+          x = 0;
+          y += cellHeight;
+        }
+        cells.push([font, css, char, x, y, advance]);
+        x += width;
+      }
+    }
+    const atlasHeight = Math.ceil((y + cellHeight) * scale);
+
+    this.canvas = document.createElement("canvas");
+    this.canvas.width = atlasWidth;
+    this.canvas.height = atlasHeight;
+    const context = this.canvas.getContext("2d");
+    if (context === null) throw new Error("Canvas 2D is not available");
+    context.scale(scale, scale);
+    context.textBaseline = "middle";
+    context.lineJoin = "round";
+    context.lineWidth = halo * 2;
+    context.strokeStyle = "#ffffff";
+    context.fillStyle = "#000000";
+
+    for (const [font, css, char, cellX, cellY, advance] of cells) {
+      const width = Math.ceil(advance) + padding * 2;
+      context.font = css;
+      const baseline = cellY + cellHeight / 2;
+      context.strokeText(char, cellX + padding, baseline);
+      context.fillText(char, cellX + padding, baseline);
+      this.glyphs[font].set(char, {
+        u0: (cellX * scale) / atlasWidth,
+        v0: (cellY * scale) / atlasHeight,
+        u1: ((cellX + width) * scale) / atlasWidth,
+        v1: ((cellY + cellHeight) * scale) / atlasHeight,
+        width,
+        height: cellHeight,
+        advance,
+      });
+    }
+  }
+
+  /** The glyph for a character, falling back to "?" outside ASCII. */
+  glyph(font: GlyphFont, char: string): Glyph {
+    const glyphs = this.glyphs[font];
+    return glyphs.get(char) ?? (glyphs.get("?") as Glyph);
+  }
+}
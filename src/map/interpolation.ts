@@ -0,0 +1,120 @@
+import { VehicleFrame } from "../vehicles/frame";
+import { GridIndex } from "../vehicles/spatialIndex";
+
+/** Floats per vehicle in the vertex buffer: x, y, bearing, style. */
+export const VertexSize = 4;
+
+// How often step() checks the clock against its budget.
+const budgetCheckInterval = 128;
+
+function lerpBearing(from: number, to: number, t: number): number {
+  if (from < 0 || to < 0) return to;
+  const delta = ((to - from + 540) % 360) - 180;
+  return (from + delta * t + 360) % 360;
+}
+
+/**
+ * Eases every vehicle from where it was drawn when the latest frame arrived
+ * to its newly observed position over one poll interval. Positions are
+ * written straight into an interleaved vertex array ready for upload.
+ */
+export class VehicleInterpolator {
+  vertices = new Float32Array(0);
+  size = 0;
+  /**
+   * Mercator boxes spanning each vehicle's start and end positions. Easing
+   * is linear, so a vehicle never leaves its box until the next frame and
+   * one index serves every animation step in between.
+   */
+  index = new GridIndex(new Float64Array(0), 0);
+
+  private indexById = new Map<string, number>();
+  private fromX = new Float64Array(0);
+  private fromY = new Float64Array(0);
+  private fromBearing = new Float32Array(0);
+  private frame: VehicleFrame | null = null;
+  private startTime = 0;
+  private duration = 1;
+  private cursor = 0;
+  private settled = true;
+
+  setFrame(frame: VehicleFrame, now: number, duration: number) {
+    const size = frame.vehicleIds.length;
+    const fromX = new Float64Array(size);
+    const fromY = new Float64Array(size);
+    const fromBearing = new Float32Array(size);
+    const vertices = new Float32Array(size * VertexSize);
+    const indexById = new Map<string, number>();
+    const boxes = new Float64Array(size * 4);
+
+    for (let i = 0; i < size; i++) {
+      const vehicleId = frame.vehicleIds[i];
+      indexById.set(vehicleId, i);
+      const previous = this.indexById.get(vehicleId);
+      if (previous === undefined) {
+        fromX[i] = frame.x[i];
+        fromY[i] = frame.y[i];
+        fromBearing[i] = frame.bearing[i];
+      } else {
+        const offset = previous * VertexSize;
+        fromX[i] = this.vertices[offset];
+        fromY[i] = this.vertices[offset + 1];
+        fromBearing[i] = this.vertices[offset + 2];
+      }
+      const offset = i * VertexSize;
+      vertices[offset] = fromX[i];
+      vertices[offset + 1] = fromY[i];
+      vertices[offset + 2] = fromBearing[i];
+      vertices[offset + 3] = frame.style[i];
+      boxes.set(
+        [
+          Math.min(fromX[i], frame.x[i]),
+          Math.min(fromY[i], frame.y[i]),
+          Math.max(fromX[i], frame.x[i]),
+          Math.max(fromY[i], frame.y[i]),
+        ],
+        i * 4
+      );
+    }
+
+    this.frame = frame;
+    this.indexById = indexById;
+    this.fromX = fromX;
+    this.fromY = fromY;
+    this.fromBearing = fromBearing;
+    this.vertices = vertices;
+    this.index = new GridIndex(boxes, size);
+    this.size = size;
+    this.startTime = now;
+    this.duration = Math.max(1, duration);
+    this.cursor = 0;
+    this.settled = false;
+  }
+
+  /**
+   * Advances positions to time now, stopping early once budget milliseconds
+   * have been spent. Vehicles skipped this frame are picked up first on the
+   * next one. Returns true while vehicles are still moving.
+   */
+  step(now: number, budget: number): boolean {
+    const frame = this.frame;
+    if (frame === null || this.settled) return false;
+    const t = Math.min(1, (now - this.startTime) / this.duration);
+    const deadline = performance.now() + budget;
+    const { vertices, fromX, fromY, fromBearing, size } = this;
+
+    for (let n = 0; n < size; n++) {
+      if (n % budgetCheckInterval === 0 && n > 0) {
+        if (performance.now() > deadline) return true;
+      }
+      const i = this.cursor;
+      this.cursor = i + 1 === size ? 0 : i + 1;
+      const offset = i * VertexSize;
+      vertices[offset] = fromX[i] + (frame.x[i] - fromX[i]) * t;
+      vertices[offset + 1] = fromY[i] + (frame.y[i] - fromY[i]) * t;
+      vertices[offset + 2] = lerpBearing(fromBearing[i], frame.bearing[i], t);
+    }
+    if (t >= 1) this.settled = true;
+    return !this.settled;
+  }
+}
@@ -0,0 +1,76 @@
+import { type Map as MaplibreMap } from "maplibre-gl";
+import {
+  railbusColourExpression,
+  RailbusRouteTable,
+} from "../vehicles/railbus";
+import { addPmtilesProtocol } from "./basemap";
+
+const sourceId = "railOverlay";
+const lineLayerId = "railLines";
+const stationLayerId = "railStations";
+
+/**
+ * Adds the rail lines and stations from `npm run basemap` under the layer
+ * beforeId. Set VITE_RAIL_OVERLAY_URL to basemap/rail.pmtiles to enable it;
+ * the tiles are simplified at build time and carry each line's code as
+ * railbusRouteName, so they share the trails' colour expression.
+ */
+export async function addRailOverlay(
+  map: MaplibreMap,
+  routes: RailbusRouteTable,
+  beforeId: string
+) {
+  const url = import.meta.env.VITE_RAIL_OVERLAY_URL;
+  if (!url) return;
+  await addPmtilesProtocol();
+  map.addSource(sourceId, {
+    type: "vector",
+    url: "pmtiles://" + new URL(url, document.baseURI).href,
+  });
+  map.addLayer(
+    {
+      id: lineLayerId,
+      type: "line",
+      source: sourceId,
+      "source-layer": "rail_lines",
+      layout: {
+        "line-cap": "round",
+        "line-join": "round",
+      },
+      paint: {
+        "line-color": railbusColourExpression(routes),
+        "line-width": ["interpolate", ["linear"], ["zoom"], 9, 1.5, 14, 4],
+        "line-opacity": 0.6,
+      },
+    },
+    beforeId
+  );
+  map.addLayer(
+    {
+      id: stationLayerId,
+      type: "circle",
+      source: sourceId,
+      "source-layer": "rail_stations",
+      paint: {
+        "circle-radius": ["interpolate", ["linear"], ["zoom"], 11, 2, 14, 5],
+        "circle-color": "#ffffff",
+        "circle-stroke-color": "#555555",
+        "circle-stroke-width": 1.5,
+      },
+    },
+    beforeId
+  );
+}
+
+/** Recolours the overlay's lines after the route table changes. */
+export function setRailOverlayRoutes(
+  map: MaplibreMap,
+  routes: RailbusRouteTable
+) {
+  if (!map.getLayer(lineLayerId)) return;
+  map.setPaintProperty(
+    lineLayerId,
+    "line-color",
+    railbusColourExpression(routes)
+  );
+}
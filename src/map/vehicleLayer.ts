@@ -0,0 +1,922 @@
+import {
+  MercatorCoordinate,
+  Point,
+  type CustomLayerInterface,
+  type CustomRenderMethodInput,
+  type LngLat,
+  type LngLatLike,
+  type Map as MaplibreMap,
+  type PointLike,
+} from "maplibre-gl";
+import {
+  NotInServiceStyle,
+  RailbusStyle,
+  VehicleFrame,
+} from "../vehicles/frame";
+import {
+  ClusterLevel,
+  ClusterMaxZoom,
+  ClusterMinZoom,
+} from "../vehicles/cluster";
+import { MaxRailbusLines, RailbusRouteTable } from "../vehicles/railbus";
+import { Box, GridIndex } from "../vehicles/spatialIndex";
+import { Glyph, GlyphAtlas, GlyphFont } from "./glyphAtlas";
+import { VehicleInterpolator, VertexSize } from "./interpolation";
+
+type GLContext = WebGLRenderingContext | WebGL2RenderingContext;
+type VertexArray = WebGLVertexArrayObject | WebGLVertexArrayObjectOES;
+
+// Keeps interpolation well inside a 60 fps frame alongside MapLibre's own
+// rendering.
+const frameBudget = 2;
+const maxStyles = RailbusStyle + MaxRailbusLines;
+// Cluster circles are this much larger than their members'.
+const clusterScale = "1.8";
+const fontSize = 14;
+const fontFamily = "Helvetica, Arial, sans-serif";
+const labelOffset = 14;
+/** Floats per glyph instance: x, y, offset x/y, width, height, uv box. */
+const GlyphSize = 10;
+const maxCountDigits = 4;
+// Labels drawn per frame at most, nearest the centre of the view first.
+const maxLabels = 40;
+// Below this zoom labels show just the line code.
+const labelDetailZoom = 13;
+
+const projectToScreen = `
+uniform mat4 u_matrix;
+uniform vec2 u_viewport;
+
+vec4 projectToScreen(vec2 position, vec2 offset) {
+  vec4 centre = u_matrix * vec4(position, 0.0, 1.0);
+  vec2 clipOffset = offset * vec2(2.0, -2.0) / u_viewport;
+  return centre + vec4(clipOffset * centre.w, 0.0, 0.0);
+}`;
+
+const circleVertexShader = `
+${projectToScreen}
+uniform vec4 u_colours[${maxStyles}];
+uniform float u_radii[${maxStyles}];
+attribute vec2 a_corner;
+attribute vec2 a_pos;
+attribute float a_bearing;
+attribute float a_style;
+varying vec4 v_colour;
+varying float v_bearing;
+varying float v_radius;
+varying vec2 v_offset;
+
+void main() {
+  // Styles from ${maxStyles} up are clusters of the style below them.
+  float clustered = step(${maxStyles}.0 - 0.5, a_style);
+  int style = int(a_style - clustered * ${maxStyles}.0 + 0.5);
+  v_colour = u_colours[style];
+  v_radius = u_radii[style] * mix(1.0, ${clusterScale}, clustered);
+  v_bearing = a_bearing;
+  v_offset = a_corner * (v_radius + 1.0);
+  gl_Position = projectToScreen(a_pos, v_offset);
+}`;
+
+const circleFragmentShader = `
+precision mediump float;
+varying vec4 v_colour;
+varying float v_bearing;
+varying float v_radius;
+varying vec2 v_offset;
+
+void main() {
+  float d = length(v_offset);
+  if (v_radius <= 0.0 || d > v_radius + 1.0) discard;
+  vec4 colour = v_radius < d ? vec4(1.0, 1.0, 1.0, 0.5) : v_colour;
+  if (v_bearing >= 0.0 && d > v_radius * 0.4 && d <= v_radius) {
+    float heading = radians(v_bearing);
+    vec2 direction = vec2(sin(heading), -cos(heading));
+    if (dot(v_offset / d, direction) > 0.92) colour = vec4(0.0, 0.0, 0.0, 0.6);
+  }
+  gl_FragColor = vec4(colour.rgb * colour.a, colour.a);
+}`;
+
+const glyphVertexShader = `
+${projectToScreen}
+attribute vec2 a_corner;
+attribute vec2 a_pos;
+attribute vec4 a_box;
+attribute vec4 a_uv;
+varying vec2 v_uv;
+
+void main() {
+  vec2 t = (a_corner + 1.0) * 0.5;
+  v_uv = mix(a_uv.xy, a_uv.zw, t);
+  gl_Position = projectToScreen(a_pos, a_box.xy + t * a_box.zw);
+}`;
+
+const glyphFragmentShader = `
+precision mediump float;
+uniform sampler2D u_atlas;
+varying vec2 v_uv;
+
+void main() {
+  gl_FragColor = texture2D(u_atlas, v_uv);
+}`;
+
+function hexToRgb(colour: string): [number, number, number] {
+  const value = parseInt(colour.slice(1), 16);
+  return [
+    ((value >> 16) & 255) / 255,
+    ((value >> 8) & 255) / 255,
+    (value & 255) / 255,
+  ];
+}
+
+/**
+ * Mercator box covering a screen rectangle. All four corners are
+ * unprojected so the box still covers it when the map is rotated.
+ */
+function screenBoxToMercator(
+  map: MaplibreMap,
+  minX: number,
+  minY: number,
+  maxX: number,
+  maxY: number
+): Box {
+  const box: Box = [Infinity, Infinity, -Infinity, -Infinity];
+  for (const corner of [
+    [minX, minY],
+    [maxX, minY],
+    [minX, maxY],
+    [maxX, maxY],
+  ] as [number, number][]) {
+    const { x, y } = MercatorCoordinate.fromLngLat(map.unproject(corner));
+    box[0] = Math.min(box[0], x);
+    box[1] = Math.min(box[1], y);
+    box[2] = Math.max(box[2], x);
+    box[3] = Math.max(box[3], y);
+  }
+  return box;
+}
+
+function compileShader(
+  gl: WebGLRenderingContext,
+  type: number,
+  source: string
+): WebGLShader {
+  const shader = gl.createShader(type) as WebGLShader;
+  gl.shaderSource(shader, source);
+  gl.compileShader(shader);
+  if (!gl.getShaderParameter(shader, gl.COMPILE_STATUS)) {
+    throw new Error(`Shader error: ${gl.getShaderInfoLog(shader)}`);
+  }
+  return shader;
+}
+
+function createProgram(
+  gl: WebGLRenderingContext,
+  vertexSource: string,
+  fragmentSource: string
+): WebGLProgram {
+  const program = gl.createProgram() as WebGLProgram;
+  gl.attachShader(program, compileShader(gl, gl.VERTEX_SHADER, vertexSource));
+  gl.attachShader(
+    program,
+    compileShader(gl, gl.FRAGMENT_SHADER, fragmentSource)
+  );
+  gl.linkProgram(program);
+  return program;
+}
+
+/** Instancing and vertex array objects, from WebGL2 or their extensions. */
+interface Instancing {
+  createVertexArray(): VertexArray;
+  bindVertexArray(vertexArray: VertexArray | null): void;
+  deleteVertexArray(vertexArray: VertexArray): void;
+  vertexAttribDivisor(index: number, divisor: number): void;
+  drawArraysInstanced(
+    mode: number,
+    first: number,
+    count: number,
+    instances: number
+  ): void;
+}
+
+function instancing(context: GLContext): Instancing {
+  if (context instanceof WebGL2RenderingContext) {
+    return {
+      createVertexArray: () =>
+        context.createVertexArray() as WebGLVertexArrayObject,
+      bindVertexArray: (vertexArray) =>
+        context.bindVertexArray(vertexArray as WebGLVertexArrayObject | null),
+      deleteVertexArray: (vertexArray) =>
+        context.deleteVertexArray(vertexArray as WebGLVertexArrayObject),
+      vertexAttribDivisor: (index, divisor) =>
+        context.vertexAttribDivisor(index, divisor),
+      drawArraysInstanced: (mode, first, count, instances) =>
+        context.drawArraysInstanced(mode, first, count, instances),
+    };
+  }
+  const vertexArrays = context.getExtension("OES_vertex_array_object");
+  const instanced = context.getExtension("ANGLE_instanced_arrays");
+  if (vertexArrays === null || instanced === null) {
+    throw new Error("Vehicle layer needs instanced drawing support");
+  }
+  return {
+    createVertexArray: () =>
+      vertexArrays.createVertexArrayOES() as WebGLVertexArrayObjectOES,
+    bindVertexArray: (vertexArray) =>
+      vertexArrays.bindVertexArrayOES(
+        vertexArray as WebGLVertexArrayObjectOES | null
+      ),
+    deleteVertexArray: (vertexArray) =>
+      vertexArrays.deleteVertexArrayOES(
+        vertexArray as WebGLVertexArrayObjectOES
+      ),
+    vertexAttribDivisor: (index, divisor) =>
+      instanced.vertexAttribDivisorANGLE(index, divisor),
+    drawArraysInstanced: (mode, first, count, instances) =>
+      instanced.drawArraysInstancedANGLE(mode, first, count, instances),
+  };
+}
+
+/** A growable GL buffer updated with bufferSubData where possible. */
+class DynamicBuffer {
+  readonly buffer: WebGLBuffer;
+  private size = 0;
+
+  constructor(gl: WebGLRenderingContext) {
+    this.buffer = gl.createBuffer() as WebGLBuffer;
+  }
+
+  upload(gl: WebGLRenderingContext, data: Float32Array, length: number) {
+    gl.bindBuffer(gl.ARRAY_BUFFER, this.buffer);
+    if (data.length > this.size) {
+      gl.bufferData(gl.ARRAY_BUFFER, data, gl.DYNAMIC_DRAW);
+      this.size = data.length;
+    } else {
+      gl.bufferSubData(gl.ARRAY_BUFFER, 0, data.subarray(0, length));
+    }
+  }
+}
+
+/** Glyph quad for one character, positioned at the origin. */
+function glyphQuad(glyph: Glyph, pen: number): number[] {
+  return [
+    0,
+    0,
+    pen,
+    -glyph.height / 2,
+    glyph.width,
+    glyph.height,
+    glyph.u0,
+    glyph.v0,
+    glyph.u1,
+    glyph.v1,
+  ];
+}
+
+/** Badge after the line code: minutes late or early, blank when on time. */
+function formatDelay(seconds: number): string {
+  const minutes = Math.round(seconds / 60);
+  if (isNaN(minutes) || minutes === 0) return "";
+  return minutes > 0 ? ` +${minutes} min` : ` ${minutes} min`;
+}
+
+interface LabelLayout {
+  lineName: string;
+  tripId: string | null;
+  delay: string;
+  glyphs: Float32Array;
+  /** Glyphs in the line code, which come first. */
+  shortCount: number;
+  width: number;
+}
+
+interface GLResources {
+  instancing: Instancing;
+  corners: WebGLBuffer;
+  circleProgram: WebGLProgram;
+  circleBuffer: DynamicBuffer;
+  circleVertexArray: VertexArray;
+  glyphProgram: WebGLProgram;
+  glyphBuffer: DynamicBuffer;
+  glyphVertexArray: VertexArray;
+  atlas: WebGLTexture;
+}
+
+/**
+ * Draws vehicles as instanced circles and their labels as instanced glyph
+ * quads, straight from typed arrays. Nothing goes through a GeoJSON source,
+ * so updates never trigger re-tiling, and animating between polls only costs
+ * a buffer upload per frame.
+ */
+export class VehicleLayer implements CustomLayerInterface {
+  readonly id = "vehiclePoints";
+  readonly type = "custom";
+  readonly renderingMode = "2d";
+
+  readonly interpolator = new VehicleInterpolator();
+  private map: MaplibreMap | null = null;
+  private resources: GLResources | null = null;
+  private atlas: GlyphAtlas | null = null;
+  private lineNames: string[] = [];
+  private colours = new Float32Array(maxStyles * 4);
+  private radii = new Float32Array(maxStyles);
+
+  private frame: VehicleFrame | null = null;
+  /** Cluster centres of each of the frame's levels, for picking. */
+  private clusterIndices = new Map<ClusterLevel, GridIndex>();
+  /** Laid-out glyphs for every vehicle, without positions. */
+  private glyphs = new Float32Array(0);
+  /** Each vehicle's glyphs run from glyphStart[i] to glyphStart[i + 1]. */
+  private glyphStart = new Int32Array(1);
+  /** End of each vehicle's line code, the label shown when zoomed out. */
+  private shortEnd = new Int32Array(0);
+  private labelCache = new Map<string, LabelLayout>();
+  private maxLabelWidth = 0;
+  private labelled = new Uint8Array(0);
+  private labelledLastFrame: number[] = [];
+  // Vehicles and glyphs that survived culling this frame, ready to upload.
+  private visible = new Int32Array(0);
+  private drawVertices = new Float32Array(0);
+  private drawGlyphs = new Float32Array(0);
+
+  constructor(routes: RailbusRouteTable) {
+    this.setRoutes(routes);
+  }
+
+  setRoutes(routes: RailbusRouteTable) {
+    this.lineNames = Object.keys(routes).slice(0, MaxRailbusLines);
+    this.colours.fill(0);
+    this.radii.fill(0);
+    this.colours.set([0.5, 0.5, 0.5, 0.8], NotInServiceStyle * 4);
+    this.radii[NotInServiceStyle] = 5;
+    this.lineNames.forEach((lineName, lineIndex) => {
+      const style = RailbusStyle + lineIndex;
+      const [r, g, b] = hexToRgb(routes[lineName].colour);
+      this.colours.set([r, g, b, 0.8], style * 4);
+      this.radii[style] = 10;
+    });
+    this.layoutLabels();
+    this.map?.triggerRepaint();
+  }
+
+  setFrame(frame: VehicleFrame, now: number, duration: number) {
+    this.frame = frame;
+    this.interpolator.setFrame(frame, now, duration);
+    this.clusterIndices = new Map(
+      frame.clusters.map((level) => {
+        const count = level.count.length;
+        const boxes = new Float64Array(count * 4);
+        for (let c = 0; c < count; c++) {
+          boxes.set([level.x[c], level.y[c], level.x[c], level.y[c]], c * 4);
+        }
+        return [level, new GridIndex(boxes, count)];
+      })
+    );
+    this.layoutLabels();
+    this.map?.triggerRepaint();
+  }
+
+  /** Index of the drawn vehicle under a screen point, or -1. */
+  pick(point: PointLike): number {
+    const { map, interpolator } = this;
+    if (map === null) return -1;
+    const target = Point.convert(point);
+    const reach = Math.max(...this.radii) + 1;
+    const box = screenBoxToMercator(
+      map,
+      target.x - reach,
+      target.y - reach,
+      target.x + reach,
+      target.y + reach
+    );
+    const level = this.clusterLevel();
+    let best = -1;
+    let bestDistance = Infinity;
+    interpolator.index.search(box, (i) => {
+      const radius = this.radii[this.style(i)];
+      if (radius === 0 || this.clustered(level, i)) return;
+      const distance = map.project(this.lngLat(i)).dist(target);
+      if (distance <= radius + 1 && distance < bestDistance) {
+        best = i;
+        bestDistance = distance;
+      }
+    });
+    return best;
+  }
+
+  /** Centre of the vehicle cluster under a screen point, or null. */
+  pickCluster(point: PointLike): LngLat | null {
+    const { map } = this;
+    const level = this.clusterLevel();
+    const index = level === null ? undefined : this.clusterIndices.get(level);
+    if (map === null || level === null || index === undefined) return null;
+    const target = Point.convert(point);
+    const reach = Math.max(...this.radii) * Number(clusterScale) + 1;
+    const box = screenBoxToMercator(
+      map,
+      target.x - reach,
+      target.y - reach,
+      target.x + reach,
+      target.y + reach
+    );
+    let best: LngLat | null = null;
+    let bestDistance = Infinity;
+    index.search(box, (c) => {
+      if (level.count[c] < 2) return;
+      const lngLat = new MercatorCoordinate(level.x[c], level.y[c]).toLngLat();
+      const radius = this.radii[level.style[c]] * Number(clusterScale);
+      const distance = map.project(lngLat).dist(target);
+      if (distance <= radius + 1 && distance < bestDistance) {
+        best = lngLat;
+        bestDistance = distance;
+      }
+    });
+    return best;
+  }
+
+  /** Clusters for the current zoom, or null when zoomed in past them. */
+  private clusterLevel(): ClusterLevel | null {
+    const { map, frame } = this;
+    if (map === null || frame === null) return null;
+    const zoom = Math.floor(map.getZoom());
+    if (zoom > ClusterMaxZoom) return null;
+    const level = Math.max(zoom, ClusterMinZoom) - ClusterMinZoom;
+    return frame.clusters[level] ?? null;
+  }
+
+  /** Whether a vehicle is drawn as part of a larger cluster. */
+  private clustered(level: ClusterLevel | null, index: number): boolean {
+    if (level === null) return false;
+    const cluster = level.vehicleCluster[index];
+    return cluster >= 0 && level.count[cluster] > 1;
+  }
+
+  /** Up to count drawn vehicles nearest a location, nearest first. */
+  nearest(lngLat: LngLatLike, count: number): number[] {
+    const { x, y } = MercatorCoordinate.fromLngLat(lngLat);
+    const { vertices, index } = this.interpolator;
+    return index.nearest(x, y, count, (i) => {
+      if (this.radii[this.style(i)] === 0) return Infinity;
+      const dx = vertices[i * VertexSize] - x;
+      const dy = vertices[i * VertexSize + 1] - y;
+      // The box distance is a lower bound; rounding to float32 mustn't
+      // take the exact distance below it.
+      return Math.max(dx * dx + dy * dy, index.boxDistance(i, x, y));
+    });
+  }
+
+  vehicleId(index: number): string {
+    return (this.frame as VehicleFrame).vehicleIds[index];
+  }
+
+  headsign(index: number): string | null {
+    return (this.frame as VehicleFrame).headsigns[index];
+  }
+
+  style(index: number): number {
+    return this.interpolator.vertices[index * VertexSize + 3];
+  }
+
+  lngLat(index: number): LngLat {
+    const offset = index * VertexSize;
+    const { vertices } = this.interpolator;
+    return new MercatorCoordinate(
+      vertices[offset],
+      vertices[offset + 1]
+    ).toLngLat();
+  }
+
+  /** Railbus line the vehicle is standing in for, if any. */
+  lineName(index: number): string | null {
+    const style = this.style(index);
+    return style < RailbusStyle ? null : this.lineNames[style - RailbusStyle];
+  }
+
+  /**
+   * Glyph quads for one label, with the line code and delay badge first so
+   * they show when zoomed out.
+   */
+  private layoutLabel(
+    vehicleId: string,
+    lineName: string,
+    tripId: string | null,
+    delay: string
+  ): LabelLayout {
+    const atlas = this.atlas as GlyphAtlas;
+    const short = lineName + delay;
+    const runs: [GlyphFont, string][] = [
+      ["bold", short],
+      ["regular", `, Trip ID: ${tripId}, Vehicle ID: ${vehicleId}`],
+    ];
+    const glyphs = new Float32Array(
+      (short.length + runs[1][1].length) * GlyphSize
+    );
+    let glyphIndex = 0;
+    let pen = labelOffset;
+    for (const [font, text] of runs) {
+      for (const char of text) {
+        const glyph = atlas.glyph(font, char);
+        glyphs.set(glyphQuad(glyph, pen), glyphIndex * GlyphSize);
+        pen += glyph.advance;
+        glyphIndex++;
+      }
+    }
+    return {
+      lineName,
+      tripId,
+      delay,
+      glyphs,
+      shortCount: short.length,
+      width: pen,
+    };
+  }
+
+  /**
+   * Packs glyph quads for the current labels, relative to vehicles. Layouts
+   * are kept per vehicle and reused while its line, trip and delay in whole
+   * minutes are unchanged, so a poll only formats labels that changed.
+   */
+  private layoutLabels() {
+    const { frame, atlas } = this;
+    if (frame === null || atlas === null) return;
+
+    const cache = new Map<string, LabelLayout>();
+    const layouts = frame.vehicleIds.map((vehicleId, index) => {
+      const style = frame.style[index];
+      if (style < RailbusStyle) return null;
+      const lineName = this.lineNames[style - RailbusStyle] ?? "";
+      const tripId = frame.tripIds[index];
+      const delay = formatDelay(frame.delay[index]);
+      let layout = this.labelCache.get(vehicleId);
+      if (
+        layout?.lineName !== lineName ||
+        layout.tripId !== tripId ||
+        layout.delay !== delay
+      ) {
+        layout = this.layoutLabel(vehicleId, lineName, tripId, delay);
+      }
+      cache.set(vehicleId, layout);
+      return layout;
+    });
+    this.labelCache = cache;
+
+    const glyphCount = layouts.reduce(
+      (total, layout) => total + (layout?.glyphs.length ?? 0),
+      0
+    );
+    if (this.glyphs.length < glyphCount) {
+      this.glyphs = new Float32Array(glyphCount);
+    }
+    this.glyphStart = new Int32Array(layouts.length + 1);
+    this.shortEnd = new Int32Array(layouts.length);
+    this.maxLabelWidth = 0;
+
+    let glyphIndex = 0;
+    layouts.forEach((layout, vehicleIndex) => {
+      this.glyphStart[vehicleIndex] = glyphIndex;
+      this.shortEnd[vehicleIndex] = glyphIndex;
+      if (layout === null) return;
+      this.glyphs.set(layout.glyphs, glyphIndex * GlyphSize);
+      this.shortEnd[vehicleIndex] = glyphIndex + layout.shortCount;
+      glyphIndex += layout.glyphs.length / GlyphSize;
+      this.maxLabelWidth = Math.max(this.maxLabelWidth, layout.width);
+    });
+    this.glyphStart[layouts.length] = glyphIndex;
+  }
+
+  /**
+   * Marks which vehicles get a label this frame: at most maxLabels, those
+   * nearest the centre of the view, found through the spatial index.
+   */
+  private chooseLabels(
+    map: MaplibreMap,
+    level: ClusterLevel | null,
+    box: Box
+  ) {
+    const { glyphStart, labelled } = this;
+    const { vertices, index } = this.interpolator;
+    for (const i of this.labelledLastFrame) labelled[i] = 0;
+    const { x, y } = MercatorCoordinate.fromLngLat(map.getCenter());
+    this.labelledLastFrame = index.nearest(x, y, maxLabels, (i) => {
+      if (glyphStart[i + 1] === glyphStart[i] || this.clustered(level, i)) {
+        return Infinity;
+      }
+      const vx = vertices[i * VertexSize];
+      const vy = vertices[i * VertexSize + 1];
+      if (vx < box[0] || vx > box[2] || vy < box[1] || vy > box[3]) {
+        return Infinity;
+      }
+      const dx = vx - x;
+      const dy = vy - y;
+      return Math.max(dx * dx + dy * dy, index.boxDistance(i, x, y));
+    });
+    for (const i of this.labelledLastFrame) labelled[i] = 1;
+  }
+
+  /**
+   * Copies the vehicles and labels that could be on screen into the draw
+   * buffers, in index order so overlapping circles keep a stable stacking.
+   * Labels hang to the right of their vehicle, so the search reaches far
+   * enough left to catch labels of vehicles just off screen.
+   */
+  private cull(map: MaplibreMap): [number, number] {
+    const { interpolator, glyphs, glyphStart, shortEnd } = this;
+    const { vertices, size } = interpolator;
+    const level = this.clusterLevel();
+    const clusterCount = level?.count.length ?? 0;
+    const canvas = map.getCanvas();
+    const reach = Math.max(...this.radii) + 1;
+    const box = screenBoxToMercator(
+      map,
+      -reach - this.maxLabelWidth,
+      -reach,
+      canvas.clientWidth + reach,
+      canvas.clientHeight + reach
+    );
+
+    if (this.visible.length < size) {
+      this.visible = new Int32Array(size);
+      this.labelled = new Uint8Array(size);
+      this.labelledLastFrame = [];
+    }
+    if (this.drawVertices.length < (size + clusterCount) * VertexSize) {
+      this.drawVertices = new Float32Array((size + clusterCount) * VertexSize);
+    }
+    const glyphCapacity =
+      glyphs.length + clusterCount * maxCountDigits * GlyphSize;
+    if (this.drawGlyphs.length < glyphCapacity) {
+      this.drawGlyphs = new Float32Array(glyphCapacity);
+    }
+    let visibleCount = 0;
+    interpolator.index.search(box, (i) => {
+      if (!this.clustered(level, i)) this.visible[visibleCount++] = i;
+    });
+    const visible = this.visible.subarray(0, visibleCount).sort();
+
+    // Labels are laid out for the frame the interpolator is showing.
+    const laidOut = glyphStart.length === size + 1;
+    if (laidOut) this.chooseLabels(map, level, box);
+    const detailed = map.getZoom() >= labelDetailZoom;
+    let glyphCount = 0;
+    for (let n = 0; n < visibleCount; n++) {
+      const i = visible[n];
+      const offset = i * VertexSize;
+      this.drawVertices.set(
+        vertices.subarray(offset, offset + VertexSize),
+        n * VertexSize
+      );
+      if (!laidOut || !this.labelled[i]) continue;
+      const end = detailed ? glyphStart[i + 1] : shortEnd[i];
+      for (let g = glyphStart[i]; g < end; g++) {
+        const target = glyphCount * GlyphSize;
+        this.drawGlyphs.set(
+          glyphs.subarray(g * GlyphSize, (g + 1) * GlyphSize),
+          target
+        );
+        this.drawGlyphs[target] = vertices[offset];
+        this.drawGlyphs[target + 1] = vertices[offset + 1];
+        glyphCount++;
+      }
+    }
+
+    let drawCount = visibleCount;
+    for (let c = 0; level !== null && c < clusterCount; c++) {
+      const x = level.x[c];
+      const y = level.y[c];
+      if (level.count[c] < 2) continue;
+      if (x < box[0] || x > box[2] || y < box[1] || y > box[3]) continue;
+      this.drawVertices.set(
+        [x, y, -1, level.style[c] + maxStyles],
+        drawCount * VertexSize
+      );
+      drawCount++;
+      glyphCount = this.layoutCount(x, y, level.count[c], glyphCount);
+    }
+    return [drawCount, glyphCount];
+  }
+
+  /** Writes glyphs for a cluster's count, centred on it. */
+  private layoutCount(
+    x: number,
+    y: number,
+    count: number,
+    glyphIndex: number
+  ): number {
+    const atlas = this.atlas as GlyphAtlas;
+    const text = String(Math.min(count, 10 ** maxCountDigits - 1));
+    const width = [...text].reduce(
+      (total, char) => total + atlas.glyph("bold", char).advance,
+      0
+    );
+    let pen = -width / 2;
+    for (const char of text) {
+      const glyph = atlas.glyph("bold", char);
+      const quad = glyphQuad(glyph, pen);
+      quad[0] = x;
+      quad[1] = y;
+      this.drawGlyphs.set(quad, glyphIndex * GlyphSize);
+      pen += glyph.advance;
+      glyphIndex++;
+    }
+    return glyphIndex;
+  }
+
+  onAdd(map: MaplibreMap, context: GLContext) {
+    const gl = context as WebGLRenderingContext;
+    this.map = map;
+    this.atlas ??= new GlyphAtlas(
+      fontSize,
+      fontFamily,
+      window.devicePixelRatio
+    );
+
+    const corners = gl.createBuffer() as WebGLBuffer;
+    gl.bindBuffer(gl.ARRAY_BUFFER, corners);
+    gl.bufferData(
+      gl.ARRAY_BUFFER,
+      new Float32Array([-1, -1, 1, -1, -1, 1, 1, 1]),
+      gl.STATIC_DRAW
+    );
+
+    const atlas = gl.createTexture() as WebGLTexture;
+    gl.bindTexture(gl.TEXTURE_2D, atlas);
+    gl.pixelStorei(gl.UNPACK_PREMULTIPLY_ALPHA_WEBGL, true);
+    gl.texImage2D(
+      gl.TEXTURE_2D,
+      0,
+      gl.RGBA,
+      gl.RGBA,
+      gl.UNSIGNED_BYTE,
+      this.atlas.canvas
+    );
+    gl.pixelStorei(gl.UNPACK_PREMULTIPLY_ALPHA_WEBGL, false);
+    gl.texParameteri(gl.TEXTURE_2D, gl.TEXTURE_MIN_FILTER, gl.LINEAR);
+    gl.texParameteri(gl.TEXTURE_2D, gl.TEXTURE_MAG_FILTER, gl.LINEAR);
+    gl.texParameteri(gl.TEXTURE_2D, gl.TEXTURE_WRAP_S, gl.CLAMP_TO_EDGE);
+    gl.texParameteri(gl.TEXTURE_2D, gl.TEXTURE_WRAP_T, gl.CLAMP_TO_EDGE);
+
+    const ext = instancing(context);
+    const circleProgram = createProgram(
+      gl,
+      circleVertexShader,
+      circleFragmentShader
+    );
+    const circleBuffer = new DynamicBuffer(gl);
+    const circleVertexArray = this.createVertexArray(
+      gl,
+      ext,
+      circleProgram,
+      corners,
+      circleBuffer,
+      [
+        ["a_pos", 2],
+        ["a_bearing", 1],
+        ["a_style", 1],
+      ]
+    );
+    const glyphProgram = createProgram(
+      gl,
+      glyphVertexShader,
+      glyphFragmentShader
+    );
+    const glyphBuffer = new DynamicBuffer(gl);
+    const glyphVertexArray = this.createVertexArray(
+      gl,
+      ext,
+      glyphProgram,
+      corners,
+      glyphBuffer,
+      [
+        ["a_pos", 2],
+        ["a_box", 4],
+        ["a_uv", 4],
+      ]
+    );
+
+    this.resources = {
+      instancing: ext,
+      corners,
+      circleProgram,
+      circleBuffer,
+      circleVertexArray,
+      glyphProgram,
+      glyphBuffer,
+      glyphVertexArray,
+      atlas,
+    };
+    this.layoutLabels();
+  }
+
+  private createVertexArray(
+    gl: WebGLRenderingContext,
+    ext: Instancing,
+    program: WebGLProgram,
+    corners: WebGLBuffer,
+    instances: DynamicBuffer,
+    attributes: [string, number][]
+  ): VertexArray {
+    const vertexArray = ext.createVertexArray();
+    ext.bindVertexArray(vertexArray);
+
+    const corner = gl.getAttribLocation(program, "a_corner");
+    gl.bindBuffer(gl.ARRAY_BUFFER, corners);
+    gl.enableVertexAttribArray(corner);
+    gl.vertexAttribPointer(corner, 2, gl.FLOAT, false, 0, 0);
+
+    gl.bindBuffer(gl.ARRAY_BUFFER, instances.buffer);
+    const stride =
+      attributes.reduce((total, [, size]) => total + size, 0) *
+      Float32Array.BYTES_PER_ELEMENT;
+    let offset = 0;
+    for (const [name, size] of attributes) {
+      const location = gl.getAttribLocation(program, name);
+      gl.enableVertexAttribArray(location);
+      gl.vertexAttribPointer(location, size, gl.FLOAT, false, stride, offset);
+      ext.vertexAttribDivisor(location, 1);
+      offset += size * Float32Array.BYTES_PER_ELEMENT;
+    }
+
+    ext.bindVertexArray(null);
+    return vertexArray;
+  }
+
+  onRemove(_map: MaplibreMap, context: GLContext) {
+    const gl = context as WebGLRenderingContext;
+    const { resources } = this;
+    if (resources !== null) {
+      gl.deleteProgram(resources.circleProgram);
+      gl.deleteProgram(resources.glyphProgram);
+      gl.deleteBuffer(resources.corners);
+      gl.deleteBuffer(resources.circleBuffer.buffer);
+      gl.deleteBuffer(resources.glyphBuffer.buffer);
+      gl.deleteTexture(resources.atlas);
+      resources.instancing.deleteVertexArray(resources.circleVertexArray);
+      resources.instancing.deleteVertexArray(resources.glyphVertexArray);
+    }
+    this.resources = null;
+    this.map = null;
+  }
+
+  render(context: GLContext, options: CustomRenderMethodInput) {
+    const gl = context as WebGLRenderingContext;
+    const { interpolator, resources, map } = this;
+    if (resources === null || map === null || interpolator.size === 0) return;
+
+    const animating = interpolator.step(performance.now(), frameBudget);
+    const [vehicleCount, glyphCount] = this.cull(map);
+
+    const canvas = map.getCanvas();
+    const ext = resources.instancing;
+    gl.enable(gl.BLEND);
+    gl.blendFunc(gl.ONE, gl.ONE_MINUS_SRC_ALPHA);
+
+    resources.circleBuffer.upload(
+      gl,
+      this.drawVertices,
+      vehicleCount * VertexSize
+    );
+    gl.useProgram(resources.circleProgram);
+    this.setViewUniforms(gl, resources.circleProgram, options, canvas);
+    gl.uniform4fv(
+      gl.getUniformLocation(resources.circleProgram, "u_colours"),
+      this.colours
+    );
+    gl.uniform1fv(
+      gl.getUniformLocation(resources.circleProgram, "u_radii"),
+      this.radii
+    );
+    ext.bindVertexArray(resources.circleVertexArray);
+    ext.drawArraysInstanced(gl.TRIANGLE_STRIP, 0, 4, vehicleCount);
+
+    if (glyphCount > 0) {
+      resources.glyphBuffer.upload(gl, this.drawGlyphs, glyphCount * GlyphSize);
+      gl.useProgram(resources.glyphProgram);
+      this.setViewUniforms(gl, resources.glyphProgram, options, canvas);
+      gl.activeTexture(gl.TEXTURE0);
+      gl.bindTexture(gl.TEXTURE_2D, resources.atlas);
+      gl.uniform1i(gl.getUniformLocation(resources.glyphProgram, "u_atlas"), 0);
+      ext.bindVertexArray(resources.glyphVertexArray);
+      ext.drawArraysInstanced(gl.TRIANGLE_STRIP, 0, 4, glyphCount);
+    }
+
+    ext.bindVertexArray(null);
+    if (animating) map.triggerRepaint();
+  }
+
+  private setViewUniforms(
+    gl: WebGLRenderingContext,
+    program: WebGLProgram,
+    options: CustomRenderMethodInput,
+    canvas: HTMLCanvasElement
+  ) {
+    gl.uniformMatrix4fv(
+      gl.getUniformLocation(program, "u_matrix"),
+      false,
+      options.modelViewProjectionMatrix as Float32List
+    );
+    gl.uniform2f(
+      gl.getUniformLocation(program, "u_viewport"),
+      canvas.clientWidth,
+      canvas.clientHeight
+    );
+  }
+}
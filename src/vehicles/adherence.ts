@@ -0,0 +1,137 @@
+import type { GtfsIndex } from "./gtfs";
+
+// How many stop-to-stop segments past the last match are searched each
+// poll. A bus covers a few stops between polls at most, even after a gap.
+const lookAhead = 4;
+const day = 24 * 60 * 60;
+
+// Metlink's timetable is in New Zealand time, whatever the browser's zone.
+const localTime = new Intl.DateTimeFormat("en-NZ", {
+  timeZone: "Pacific/Auckland",
+  hourCycle: "h23",
+  hour: "numeric",
+  minute: "numeric",
+});
+
+let offsetHour = NaN;
+let offsetSeconds = 0;
+
+/**
+ * Seconds since local midnight for an epoch-ms time. Formatting is slow, so
+ * the zone's offset is worked out once per UTC hour; daylight saving
+ * changes on the hour, so that is exact.
+ */
+function localSeconds(time: number): number {
+  const hour = Math.floor(time / 3600000);
+  if (hour !== offsetHour) {
+    let seconds = 0;
+    for (const part of localTime.formatToParts(hour * 3600000)) {
+      if (part.type === "hour") seconds += Number(part.value) * 3600;
+      if (part.type === "minute") seconds += Number(part.value) * 60;
+    }
+    offsetHour = hour;
+    offsetSeconds = seconds - ((hour * 3600) % day);
+  }
+  return (((time / 1000 + offsetSeconds) % day) + day) % day;
+}
+
+/**
+ * The trip's scheduled start in seconds since local midnight, from the feed's
+ * tripStartTime when it parses, which it must for frequency-based trips, or
+ * from the timetable otherwise.
+ */
+function startSeconds(
+  gtfs: GtfsIndex,
+  trip: number,
+  tripStartTime: string | null
+): number {
+  const match = tripStartTime?.match(/^(\d+):(\d\d)(?::(\d\d))?$/);
+  if (match) {
+    return (
+      Number(match[1]) * 3600 + Number(match[2]) * 60 + Number(match[3] ?? 0)
+    );
+  }
+  const time = tripStartTime === null ? NaN : Date.parse(tripStartTime);
+  return isNaN(time) ? gtfs.tripStart[trip] : localSeconds(time);
+}
+
+let activeIndex: GtfsIndex | null = null;
+
+export function setScheduleIndex(gtfs: GtfsIndex | null) {
+  activeIndex = gtfs;
+}
+
+/** Where the trip is headed, or null if it isn't in the timetable. */
+export function scheduleHeadsign(tripId: string | null): string | null {
+  return activeIndex?.headsign(tripId) ?? null;
+}
+
+/**
+ * Seconds the vehicle is behind schedule (negative when early), or NaN if
+ * its trip isn't in the timetable. The position is projected onto the
+ * straight lines between the trip's stops and the schedule interpolated
+ * along the nearest one.
+ *
+ * cursor[slot] holds the segment matched last poll, or -1 to search the
+ * whole trip. Only a few segments from there are searched and it only moves
+ * forward, so each poll costs the same however long the trip is, and a bus
+ * passing close to an earlier stop on a looping route isn't sent back.
+ */
+export function scheduleDelay(
+  tripId: string | null,
+  tripStartTime: string | null,
+  lat: number,
+  lon: number,
+  timestamp: number,
+  cursor: Int32Array,
+  slot: number
+): number {
+  const gtfs = activeIndex;
+  const trip = gtfs?.trip(tripId) ?? -1;
+  if (gtfs === null || trip < 0) return NaN;
+  const stops = gtfs.tripStops(trip);
+  if (stops.length < 2) return NaN;
+
+  // Local equirectangular projection; only ratios and comparisons matter.
+  const scale = Math.cos((lat * Math.PI) / 180);
+  const from = Math.max(cursor[slot], 0);
+  const to =
+    cursor[slot] < 0
+      ? stops.length - 1
+      : Math.min(from + lookAhead, stops.length - 1);
+  let best = from;
+  let bestT = 0;
+  let bestDistance = Infinity;
+  for (let n = from; n < to; n++) {
+    const ax = gtfs.stopLon[stops[n]] * scale;
+    const ay = gtfs.stopLat[stops[n]];
+    const dx = gtfs.stopLon[stops[n + 1]] * scale - ax;
+    const dy = gtfs.stopLat[stops[n + 1]] - ay;
+    const length = dx * dx + dy * dy;
+    const t =
+      length === 0
+        ? 0
+        : Math.min(
+            1,
+            Math.max(0, ((lon * scale - ax) * dx + (lat - ay) * dy) / length)
+          );
+    const ex = ax + dx * t - lon * scale;
+    const ey = ay + dy * t - lat;
+    const distance = ex * ex + ey * ey;
+    if (distance < bestDistance) {
+      best = n;
+      bestT = t;
+      bestDistance = distance;
+    }
+  }
+  cursor[slot] = best;
+
+  const departure = gtfs.departure(trip, best);
+  const arrival = gtfs.arrival(trip, best + 1);
+  const offset =
+    departure + (arrival - departure) * bestT - gtfs.tripStart[trip];
+  const scheduled = startSeconds(gtfs, trip, tripStartTime) + offset;
+  // Trips running past midnight are timetabled past 24:00.
+  const delay = localSeconds(timestamp) - scheduled;
+  return ((((delay + day / 2) % day) + day) % day) - day / 2;
+}
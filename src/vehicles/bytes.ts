@@ -0,0 +1,107 @@
+import { NoValue } from "./store";
+
+/** Growable byte buffer with LEB128 varint writes. */
+export class ByteWriter {
+  private bytes = new Uint8Array(1 << 16);
+  private length = 0;
+
+  byte(value: number) {
+    if (this.length === this.bytes.length) {
+      const bytes = new Uint8Array(this.bytes.length * 2);
+      bytes.set(this.bytes);
+      this.bytes = bytes;
+    }
+    this.bytes[this.length++] = value;
+  }
+
+  /**
+   * Unsigned varint. Uses division rather than shifts so values past 2^31,
+   * like absolute timestamps, survive.
+   */
+  varint(value: number) {
+    while (value >= 0x80) {
+      this.byte((value % 0x80) | 0x80);
+      value = Math.floor(value / 0x80);
+    }
+    this.byte(value);
+  }
+
+  /** Zigzag-encoded signed varint, so small negative deltas stay small. */
+  signed(value: number) {
+    this.varint(value < 0 ? -2 * value - 1 : 2 * value);
+  }
+
+  /** Index or count that may be NoValue, shifted up by one. */
+  optional(value: number) {
+    this.varint(value === NoValue ? 0 : value + 1);
+  }
+
+  raw(bytes: Uint8Array) {
+    for (const byte of bytes) this.byte(byte);
+  }
+
+  finish(): Uint8Array {
+    return this.bytes.subarray(0, this.length);
+  }
+}
+
+export class ByteReader {
+  private offset = 0;
+
+  constructor(private readonly bytes: Uint8Array) {}
+
+  byte(): number {
+    if (this.offset >= this.bytes.length) {
+      throw new Error("File is truncated");
+    }
+    return this.bytes[this.offset++];
+  }
+
+  varint(): number {
+    let value = 0;
+    let scale = 1;
+    let byte: number;
+    do {
+      byte = this.byte();
+      value += (byte & 0x7f) * scale;
+      scale *= 0x80;
+    } while (byte & 0x80);
+    return value;
+  }
+
+  signed(): number {
+    const value = this.varint();
+    return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+  }
+
+  optional(): number {
+    const value = this.varint();
+    return value === 0 ? NoValue : value - 1;
+  }
+
+  raw(length: number): Uint8Array {
+    if (this.offset + length > this.bytes.length) {
+      throw new Error("File is truncated");
+    }
+    const bytes = this.bytes.subarray(this.offset, this.offset + length);
+    this.offset += length;
+    return bytes;
+  }
+}
+
+async function transform(
+  data: BufferSource,
+  stream: CompressionStream | DecompressionStream
+): Promise<ArrayBuffer> {
+  return new Response(
+    new Blob([data]).stream().pipeThrough(stream)
+  ).arrayBuffer();
+}
+
+export function gzip(data: BufferSource): Promise<ArrayBuffer> {
+  return transform(data, new CompressionStream("gzip"));
+}
+
+export function gunzip(data: BufferSource): Promise<ArrayBuffer> {
+  return transform(data, new DecompressionStream("gzip"));
+}
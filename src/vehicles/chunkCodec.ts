@@ -0,0 +1,170 @@
+import { VehicleObservation } from "./observation";
+
+// timestamp, lat, lon (f64), bearing (f32), then six i32 fields.
+const recordSize = 8 * 3 + 4 + 4 * 6;
+export const NoValue = -1;
+
+/**
+ * Packs observations into a compact little-endian binary chunk. Strings are
+ * stored once in a per-chunk dictionary and referenced by index.
+ */
+export function encodeObservations(
+  observations: VehicleObservation[]
+): ArrayBuffer {
+  const indices = new Map<string, number>();
+  const strings: Uint8Array[] = [];
+  const encoder = new TextEncoder();
+  const intern = (value: string | null) => {
+    if (value === null) return NoValue;
+    let index = indices.get(value);
+    if (index === undefined) {
+      index = strings.length;
+      indices.set(value, index);
+      strings.push(encoder.encode(value));
+    }
+    return index;
+  };
+
+  const records = new DataView(
+    new ArrayBuffer(observations.length * recordSize)
+  );
+  observations.forEach((observation, i) => {
+    const offset = i * recordSize;
+    records.setFloat64(offset, Date.parse(observation.timestamp), true);
+    records.setFloat64(offset + 8, observation.lat, true);
+    records.setFloat64(offset + 16, observation.lon, true);
+    records.setFloat32(offset + 24, observation.bearing ?? NaN, true);
+    records.setInt32(offset + 28, intern(observation.vehicleId), true);
+    records.setInt32(offset + 32, intern(observation.routeId), true);
+    records.setInt32(offset + 36, intern(observation.tripId), true);
+    records.setInt32(offset + 40, intern(observation.tripStartTime), true);
+    records.setInt32(
+      offset + 44,
+      observation.currentPassengerCount ?? NoValue,
+      true
+    );
+    records.setInt32(
+      offset + 48,
+      observation.totalPassengerCount ?? NoValue,
+      true
+    );
+  });
+
+  const stringBytes = strings.reduce((total, s) => total + 2 + s.length, 0);
+  const buffer = new ArrayBuffer(8 + stringBytes + records.byteLength);
+  const view = new DataView(buffer);
+  const bytes = new Uint8Array(buffer);
+  view.setUint32(0, strings.length, true);
+  view.setUint32(4, observations.length, true);
+  let offset = 8;
+  for (const string of strings) {
+    view.setUint16(offset, string.length, true);
+    bytes.set(string, offset + 2);
+    offset += 2 + string.length;
+  }
+  bytes.set(new Uint8Array(records.buffer), offset);
+  return buffer;
+}
+
+/**
+ * Reads fields straight out of an encoded chunk without materialising
+ * observation objects. String fields return indices into strings, and
+ * missing values are NoValue (or NaN for bearing).
+ */
+export class ObservationChunkView {
+  readonly strings: string[];
+  readonly count: number;
+  private readonly view: DataView;
+  private readonly recordsOffset: number;
+
+  constructor(buffer: ArrayBuffer) {
+    this.view = new DataView(buffer);
+    const bytes = new Uint8Array(buffer);
+    const decoder = new TextDecoder();
+    const stringCount = this.view.getUint32(0, true);
+    this.count = this.view.getUint32(4, true);
+    this.strings = new Array(stringCount);
+    let offset = 8;
+    for (let i = 0; i < stringCount; i++) {
+      const length = this.view.getUint16(offset, true);
+      offset += 2;
+      this.strings[i] = decoder.decode(bytes.subarray(offset, offset + length));
+      offset += length;
+    }
+    this.recordsOffset = offset;
+  }
+
+  private record(i: number): number {
+    return this.recordsOffset + i * recordSize;
+  }
+
+  private field(i: number, offset: number): number {
+    return this.view.getInt32(this.record(i) + offset, true);
+  }
+
+  timestamp(i: number): number {
+    return this.view.getFloat64(this.record(i), true);
+  }
+
+  lat(i: number): number {
+    return this.view.getFloat64(this.record(i) + 8, true);
+  }
+
+  lon(i: number): number {
+    return this.view.getFloat64(this.record(i) + 16, true);
+  }
+
+  bearing(i: number): number {
+    return this.view.getFloat32(this.record(i) + 24, true);
+  }
+
+  vehicle(i: number): number {
+    return this.field(i, 28);
+  }
+
+  route(i: number): number {
+    return this.field(i, 32);
+  }
+
+  trip(i: number): number {
+    return this.field(i, 36);
+  }
+
+  tripStartTime(i: number): number {
+    return this.field(i, 40);
+  }
+
+  currentPassengerCount(i: number): number {
+    return this.field(i, 44);
+  }
+
+  totalPassengerCount(i: number): number {
+    return this.field(i, 48);
+  }
+}
+
+export function decodeObservations(buffer: ArrayBuffer): VehicleObservation[] {
+  const chunk = new ObservationChunkView(buffer);
+  const string = (index: number) =>
+    index === NoValue ? null : chunk.strings[index];
+  const number = (value: number) => (value === NoValue ? null : value);
+
+  const observations: VehicleObservation[] = new Array(chunk.count);
+  for (let i = 0; i < chunk.count; i++) {
+    const bearing = chunk.bearing(i);
+    observations[i] = {
+      vehicleId: chunk.strings[chunk.vehicle(i)],
+      timestamp: new Date(chunk.timestamp(i)).toISOString(),
+      lat: chunk.lat(i),
+      lon: chunk.lon(i),
+      bearing: isNaN(bearing) ? null : bearing,
+      tripId: string(chunk.trip(i)),
+      routeId: string(chunk.route(i)),
+      railbusRouteName: null,
+      tripStartTime: string(chunk.tripStartTime(i)),
+      currentPassengerCount: number(chunk.currentPassengerCount(i)),
+      totalPassengerCount: number(chunk.totalPassengerCount(i)),
+    };
+  }
+  return observations;
+}
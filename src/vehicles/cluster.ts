@@ -0,0 +1,126 @@
+import { HiddenStyle } from "./frame";
+import { GridIndex } from "./spatialIndex";
+
+/** Lowest and highest zoom levels clusters are built for. */
+export const ClusterMinZoom = 9;
+export const ClusterMaxZoom = 15;
+// Vehicles within this many screen pixels of each other merge.
+const clusterRadius = 30;
+// MapLibre's world is this many pixels wide at zoom 0.
+const worldSize = 512;
+
+/**
+ * Clusters at one zoom level. Every drawn vehicle belongs to exactly one
+ * cluster per level; most are singletons.
+ */
+export interface ClusterLevel {
+  /** Weighted centroid in Web Mercator coordinates. */
+  x: Float64Array;
+  y: Float64Array;
+  count: Int32Array;
+  /** Style shared by every member, so line colours carry through. */
+  style: Uint8Array;
+  /** Cluster index of each frame vehicle at this level, or -1 if hidden. */
+  vehicleCluster: Int32Array;
+}
+
+/** Levels indexed by zoom - ClusterMinZoom. */
+export type ClusterLevels = ClusterLevel[];
+
+interface Points {
+  x: Float64Array;
+  y: Float64Array;
+  count: Int32Array;
+  style: Uint8Array;
+  size: number;
+}
+
+/**
+ * Greedily merges points within radius (in Mercator units) of an unvisited
+ * seed, like Supercluster. Only points of the same style merge. Returns the
+ * merged points and which output each input went into.
+ */
+function mergeLevel(points: Points, radius: number): [Points, Int32Array] {
+  const { x, y, count, style, size } = points;
+  const boxes = new Float64Array(size * 4);
+  for (let i = 0; i < size; i++) boxes.set([x[i], y[i], x[i], y[i]], i * 4);
+  const index = new GridIndex(boxes, size);
+
+  const parent = new Int32Array(size).fill(-1);
+  const merged: Points = {
+    x: new Float64Array(size),
+    y: new Float64Array(size),
+    count: new Int32Array(size),
+    style: new Uint8Array(size),
+    size: 0,
+  };
+  for (let i = 0; i < size; i++) {
+    if (parent[i] !== -1) continue;
+    const cluster = merged.size++;
+    let weight = 0;
+    let sumX = 0;
+    let sumY = 0;
+    index.search(
+      [x[i] - radius, y[i] - radius, x[i] + radius, y[i] + radius],
+      (j) => {
+        if (parent[j] !== -1 || style[j] !== style[i]) return;
+        const dx = x[j] - x[i];
+        const dy = y[j] - y[i];
+        if (dx * dx + dy * dy > radius * radius) return;
+        parent[j] = cluster;
+        weight += count[j];
+        sumX += x[j] * count[j];
+        sumY += y[j] * count[j];
+      }
+    );
+    merged.x[cluster] = sumX / weight;
+    merged.y[cluster] = sumY / weight;
+    merged.count[cluster] = weight;
+    merged.style[cluster] = style[i];
+  }
+  return [merged, parent];
+}
+
+/**
+ * Builds the cluster hierarchy for a frame, from the highest zoom down.
+ * Each level merges the clusters of the level above rather than the raw
+ * vehicles, so the whole hierarchy costs little more than one level, and
+ * the map thread only has to pick a level when the zoom changes.
+ */
+export function clusterVehicles(
+  x: Float64Array,
+  y: Float64Array,
+  style: Uint8Array
+): ClusterLevels {
+  const drawn: number[] = [];
+  style.forEach((s, i) => {
+    if (s !== HiddenStyle) drawn.push(i);
+  });
+  let points: Points = {
+    x: Float64Array.from(drawn, (i) => x[i]),
+    y: Float64Array.from(drawn, (i) => y[i]),
+    count: new Int32Array(drawn.length).fill(1),
+    style: Uint8Array.from(drawn, (i) => style[i]),
+    size: drawn.length,
+  };
+  // Where each drawn vehicle currently sits in points.
+  let membership = Int32Array.from(drawn, (_, n) => n);
+
+  const levels: ClusterLevels = [];
+  for (let zoom = ClusterMaxZoom; zoom >= ClusterMinZoom; zoom--) {
+    const radius = clusterRadius / (worldSize * 2 ** zoom);
+    const [merged, parent] = mergeLevel(points, radius);
+    membership = membership.map((point) => parent[point]);
+    const vehicleCluster = new Int32Array(style.length).fill(-1);
+    drawn.forEach((vehicle, n) => (vehicleCluster[vehicle] = membership[n]));
+    levels[zoom - ClusterMinZoom] = {
+      x: merged.x.slice(0, merged.size),
+      y: merged.y.slice(0, merged.size),
+      count: merged.count.slice(0, merged.size),
+      style: merged.style.slice(0, merged.size),
+      vehicleCluster,
+    };
+    points = merged;
+  }
+  return levels;
+}
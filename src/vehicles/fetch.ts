@@ -0,0 +1,92 @@
+import { JsonArrayScanner } from "./jsonStream";
+import { VehicleObservation } from "./observation";
+import { validateVehicleObservation } from "./validate";
+
+// Validators from the last response that was parsed, used to revalidate the
+// next poll instead of downloading and parsing an unchanged fleet.
+let etag: string | null = null;
+let lastModified: string | null = null;
+let bodyHash: number | null = null;
+
+const fnvOffset = 0x811c9dc5;
+
+/** 32-bit FNV-1a, fed incrementally as the body streams in. */
+function hashText(text: string, hash: number): number {
+  for (let i = 0; i < text.length; i++) {
+    hash ^= text.charCodeAt(i);
+    hash = Math.imul(hash, 0x01000193);
+  }
+  return hash >>> 0;
+}
+
+/**
+ * Fetches the current fleet, resolving to false without parsing it if it
+ * hasn't changed since the last successful fetch, either because the server
+ * answered 304 or because the body is identical.
+ *
+ * The first fetch validates each vehicle as soon as its JSON is complete and
+ * hands vehicles to onBatch once per network chunk, so the map fills in
+ * while the feed downloads. Later fetches only hash the text as it arrives,
+ * and scan and validate it in one batch once the hash shows it has changed.
+ */
+export async function fetchVehicles(
+  onBatch: (vehicles: VehicleObservation[]) => void | Promise<void>
+): Promise<boolean> {
+  const headers: Record<string, string> = {
+    "x-api-key": import.meta.env.VITE_SNAPPER_API_KEY,
+  };
+  if (etag !== null) headers["If-None-Match"] = etag;
+  if (lastModified !== null) headers["If-Modified-Since"] = lastModified;
+
+  const response = await fetch(import.meta.env.VITE_SNAPPER_API_URL, {
+    headers,
+  });
+  if (response.status === 304) return false;
+  if (!response.ok || response.body === null) {
+    throw new Error(`HTTP error! Status: ${response.status}`);
+  }
+
+  const scanner = new JsonArrayScanner();
+  const decoder = new TextDecoder();
+  const reader = response.body.getReader();
+  // With no previous body there is nothing to compare against, so parse as
+  // the text arrives; otherwise hold the text until the hash is known.
+  const streaming = bodyHash === null;
+  const held: string[] = [];
+  let hash = fnvOffset;
+  const batch: VehicleObservation[] = [];
+  const onElement = (raw: unknown) => {
+    batch.push(validateVehicleObservation(raw));
+  };
+
+  for (;;) {
+    const { done, value } = await reader.read();
+    const text = done
+      ? decoder.decode()
+      : decoder.decode(value, { stream: true });
+    hash = hashText(text, hash);
+    if (!streaming) {
+      held.push(text);
+    } else {
+      scanner.push(text, onElement);
+      if (batch.length > 0) {
+        await onBatch(batch);
+        batch.length = 0;
+      }
+    }
+    if (done) break;
+  }
+
+  const changed = hash !== bodyHash;
+  if (changed) {
+    for (const text of held) scanner.push(text, onElement);
+    scanner.end();
+  }
+  // Only remembered once the body has parsed, so a bad body isn't skipped
+  // as unchanged next time.
+  etag = response.headers.get("ETag");
+  lastModified = response.headers.get("Last-Modified");
+  bodyHash = hash;
+  if (batch.length > 0) await onBatch(batch);
+  return changed;
+}
@@ -0,0 +1,45 @@
+import type { ClusterLevels } from "./cluster";
+
+/** How a vehicle is drawn; values from RailbusStyle up index rail lines. */
+export const HiddenStyle = 0;
+export const NotInServiceStyle = 1;
+export const RailbusStyle = 2;
+
+/**
+ * Snapshot of every vehicle after a poll, with positions in Web Mercator
+ * coordinates so the map thread can interpolate and draw without projecting.
+ * All arrays are indexed together; the typed arrays are transferred, not
+ * copied, from the worker.
+ */
+export interface VehicleFrame {
+  vehicleIds: string[];
+  tripIds: (string | null)[];
+  /** Where each trip is headed, from the GTFS index, or null. */
+  headsigns: (string | null)[];
+  x: Float64Array;
+  y: Float64Array;
+  /** Degrees clockwise from north, or -1 when unknown. */
+  bearing: Float32Array;
+  style: Uint8Array;
+  /** Seconds behind schedule, negative when early, or NaN when unknown. */
+  delay: Float32Array;
+  /** Clusters of same-styled vehicles for each low zoom level. */
+  clusters: ClusterLevels;
+}
+
+export function frameTransferables(frame: VehicleFrame): ArrayBuffer[] {
+  return [
+    frame.x.buffer,
+    frame.y.buffer,
+    frame.bearing.buffer,
+    frame.style.buffer,
+    frame.delay.buffer,
+    ...frame.clusters.flatMap((level) => [
+      level.x.buffer,
+      level.y.buffer,
+      level.count.buffer,
+      level.style.buffer,
+      level.vehicleCluster.buffer,
+    ]),
+  ] as ArrayBuffer[];
+}
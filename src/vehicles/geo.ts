@@ -0,0 +1,66 @@
+const earthRadiusMetres = 6371008.8;
+
+function toRadians(degrees: number): number {
+  return (degrees * Math.PI) / 180;
+}
+
+/** Great-circle distance in metres between two lat/lon points. */
+export function distanceMetres(
+  lat1: number,
+  lon1: number,
+  lat2: number,
+  lon2: number
+): number {
+  const dLat = toRadians(lat2 - lat1);
+  const dLon = toRadians(lon2 - lon1);
+  const a =
+    Math.sin(dLat / 2) ** 2 +
+    Math.cos(toRadians(lat1)) *
+      Math.cos(toRadians(lat2)) *
+      Math.sin(dLon / 2) ** 2;
+  return 2 * earthRadiusMetres * Math.asin(Math.min(1, Math.sqrt(a)));
+}
+
+/** [west, south, east, north], matching the map's maxBounds. */
+export type Bounds = [number, number, number, number];
+
+export function containsPoint(
+  bounds: Bounds,
+  lon: number,
+  lat: number
+): boolean {
+  return (
+    lon >= bounds[0] &&
+    lon <= bounds[2] &&
+    lat >= bounds[1] &&
+    lat <= bounds[3]
+  );
+}
+
+/** Web Mercator x in [0, 1], as used by MapLibre's MercatorCoordinate. */
+export function mercatorX(lon: number): number {
+  return (180 + lon) / 360;
+}
+
+/** Web Mercator y in [0, 1], as used by MapLibre's MercatorCoordinate. */
+export function mercatorY(lat: number): number {
+  return (
+    (180 -
+      (180 / Math.PI) *
+        Math.log(Math.tan(Math.PI / 4 + (lat * Math.PI) / 360))) /
+    360
+  );
+}
+
+/** Inverse of mercatorX. */
+export function lonFromMercatorX(x: number): number {
+  return x * 360 - 180;
+}
+
+/** Inverse of mercatorY. */
+export function latFromMercatorY(y: number): number {
+  return (
+    (360 / Math.PI) * Math.atan(Math.exp(((180 - y * 360) * Math.PI) / 180)) -
+    90
+  );
+}
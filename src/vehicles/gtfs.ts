@@ -0,0 +1,307 @@
+import { ByteReader, gunzip } from "./bytes";
+import { mercatorX, mercatorY } from "./geo";
+import { GridIndex } from "./spatialIndex";
+import { NoValue } from "./store";
+
+// "RBGT" followed by a format version, as written by gtfs/build.mjs.
+const magic = [0x52, 0x42, 0x47, 0x54];
+const version = 2;
+const positionScale = 1e6;
+
+function readTexts(reader: ByteReader, decoder: TextDecoder): string[] {
+  const values = new Array<string>(reader.varint());
+  for (let i = 0; i < values.length; i++) {
+    values[i] = decoder.decode(reader.raw(reader.varint()));
+  }
+  return values;
+}
+
+/** Inverse of the front coding in gtfs/build.mjs. */
+function readSortedTexts(reader: ByteReader, decoder: TextDecoder): string[] {
+  const values = new Array<string>(reader.varint());
+  let previous = "";
+  for (let i = 0; i < values.length; i++) {
+    const shared = reader.varint();
+    previous =
+      previous.slice(0, shared) +
+      decoder.decode(reader.raw(reader.varint()));
+    values[i] = previous;
+  }
+  return values;
+}
+
+/** Position of value in a sorted array, or NoValue. */
+function binarySearch<T extends string | number>(
+  values: ArrayLike<T>,
+  value: T
+): number {
+  let low = 0;
+  let high = values.length - 1;
+  while (low <= high) {
+    const middle = (low + high) >>> 1;
+    const candidate = values[middle];
+    if (candidate < value) low = middle + 1;
+    else if (candidate > value) high = middle - 1;
+    else return middle;
+  }
+  return NoValue;
+}
+
+/** Variable-length integer lists packed end to end, like a CSR matrix. */
+function readSequences(
+  reader: ByteReader,
+  valuesPerItem: number
+): [Int32Array, Int32Array] {
+  const count = reader.varint();
+  const start = new Int32Array(count + 1);
+  const values: number[] = [];
+  for (let i = 0; i < count; i++) {
+    const length = reader.varint() * valuesPerItem;
+    let value = 0;
+    for (let n = 0; n < length; n++) {
+      value += reader.signed();
+      values.push(value);
+    }
+    start[i + 1] = values.length;
+  }
+  return [start, Int32Array.from(values)];
+}
+
+/**
+ * Routes, stops and trips from the Metlink GTFS feed, as compact columns
+ * indexed by position. IDs are kept sorted so lookups are binary searches,
+ * stops are in a GridIndex, and trips share deduplicated stop patterns and
+ * timings, so the whole timetable fits in a few megabytes. Shapes are only
+ * held for railbus trips.
+ *
+ * Stop times are seconds since the start of the service day and may run
+ * past 24 hours, as in GTFS.
+ */
+export class GtfsIndex {
+  readonly routeIds: string[];
+  readonly routeShortName: Int32Array;
+  readonly routeLongName: Int32Array;
+  readonly routeType: Uint8Array;
+  readonly routeColour: Int32Array;
+
+  readonly stopIds: string[];
+  readonly stopCode: Int32Array;
+  readonly stopName: Int32Array;
+  readonly stopLat: Float64Array;
+  readonly stopLon: Float64Array;
+  readonly stopIndex: GridIndex;
+
+  readonly tripIds: string[];
+  readonly tripRoute: Int32Array;
+  readonly tripService: Int32Array;
+  readonly tripHeadsign: Int32Array;
+  /** GTFS direction_id, or NoValue. */
+  readonly tripDirection: Int32Array;
+  readonly tripShape: Int32Array;
+  readonly tripPattern: Int32Array;
+  readonly tripTiming: Int32Array;
+  /** Scheduled arrival at the first stop. */
+  readonly tripStart: Int32Array;
+
+  /** String index of each shape's ID, ascending. */
+  readonly shapeIds: Int32Array;
+
+  private readonly strings: string[];
+  private readonly patternStart: Int32Array;
+  private readonly patternStops: Int32Array;
+  private readonly timingStart: Int32Array;
+  /** Arrival and departure offsets from tripStart, interleaved. */
+  private readonly timingOffsets: Int32Array;
+  private readonly shapeStart: Int32Array;
+  private readonly shapeLat: Float64Array;
+  private readonly shapeLon: Float64Array;
+
+  /** Reads an index written by gtfs/build.mjs, after gunzipping it. */
+  constructor(data: Uint8Array) {
+    const reader = new ByteReader(data);
+    for (const byte of magic) {
+      if (reader.byte() !== byte) throw new Error("Not a railbus GTFS index");
+    }
+    const fileVersion = reader.byte();
+    if (fileVersion !== version) {
+      throw new Error(`Unsupported GTFS index version ${fileVersion}`);
+    }
+    const decoder = new TextDecoder();
+    this.strings = readTexts(reader, decoder);
+
+    this.routeIds = readSortedTexts(reader, decoder);
+    const routeCount = this.routeIds.length;
+    this.routeShortName = new Int32Array(routeCount);
+    this.routeLongName = new Int32Array(routeCount);
+    this.routeType = new Uint8Array(routeCount);
+    this.routeColour = new Int32Array(routeCount);
+    for (let i = 0; i < routeCount; i++) {
+      this.routeShortName[i] = reader.optional();
+      this.routeLongName[i] = reader.optional();
+      this.routeType[i] = reader.varint();
+      this.routeColour[i] = reader.optional();
+    }
+
+    this.stopIds = readSortedTexts(reader, decoder);
+    const stopCount = this.stopIds.length;
+    this.stopCode = new Int32Array(stopCount);
+    this.stopName = new Int32Array(stopCount);
+    for (let i = 0; i < stopCount; i++) {
+      this.stopCode[i] = reader.optional();
+      this.stopName[i] = reader.optional();
+    }
+    this.stopLat = new Float64Array(stopCount);
+    this.stopLon = new Float64Array(stopCount);
+    for (const column of [this.stopLat, this.stopLon]) {
+      let value = 0;
+      for (let i = 0; i < stopCount; i++) {
+        value += reader.signed();
+        column[i] = value / positionScale;
+      }
+    }
+    const boxes = new Float64Array(stopCount * 4);
+    for (let i = 0; i < stopCount; i++) {
+      const x = mercatorX(this.stopLon[i]);
+      const y = mercatorY(this.stopLat[i]);
+      boxes.set([x, y, x, y], i * 4);
+    }
+    this.stopIndex = new GridIndex(boxes, stopCount);
+
+    [this.patternStart, this.patternStops] = readSequences(reader, 1);
+    [this.timingStart, this.timingOffsets] = readSequences(reader, 2);
+
+    this.tripIds = readSortedTexts(reader, decoder);
+    const tripCount = this.tripIds.length;
+    this.tripRoute = new Int32Array(tripCount);
+    this.tripService = new Int32Array(tripCount);
+    this.tripHeadsign = new Int32Array(tripCount);
+    this.tripDirection = new Int32Array(tripCount);
+    this.tripShape = new Int32Array(tripCount);
+    this.tripPattern = new Int32Array(tripCount);
+    this.tripTiming = new Int32Array(tripCount);
+    this.tripStart = new Int32Array(tripCount);
+    for (let i = 0; i < tripCount; i++) {
+      this.tripRoute[i] = reader.varint();
+      this.tripService[i] = reader.optional();
+      this.tripHeadsign[i] = reader.optional();
+      this.tripDirection[i] = reader.optional();
+      this.tripShape[i] = reader.optional();
+      this.tripPattern[i] = reader.varint();
+      this.tripTiming[i] = reader.varint();
+      this.tripStart[i] = reader.varint();
+    }
+
+    const shapeCount = reader.varint();
+    this.shapeIds = new Int32Array(shapeCount);
+    this.shapeStart = new Int32Array(shapeCount + 1);
+    const lats: number[] = [];
+    const lons: number[] = [];
+    for (let i = 0; i < shapeCount; i++) {
+      this.shapeIds[i] = reader.varint();
+      const length = reader.varint();
+      let lat = 0;
+      let lon = 0;
+      for (let n = 0; n < length; n++) {
+        lat += reader.signed();
+        lon += reader.signed();
+        lats.push(lat / positionScale);
+        lons.push(lon / positionScale);
+      }
+      this.shapeStart[i + 1] = lats.length;
+    }
+    this.shapeLat = Float64Array.from(lats);
+    this.shapeLon = Float64Array.from(lons);
+  }
+
+  /** Text for an index in any of the string columns. */
+  string(index: number): string | null {
+    return index === NoValue ? null : this.strings[index];
+  }
+
+  route(routeId: string): number {
+    return binarySearch(this.routeIds, routeId);
+  }
+
+  stop(stopId: string): number {
+    return binarySearch(this.stopIds, stopId);
+  }
+
+  trip(tripId: string | null): number {
+    return tripId === null ? NoValue : binarySearch(this.tripIds, tripId);
+  }
+
+  headsign(tripId: string | null): string | null {
+    const trip = this.trip(tripId);
+    return trip === NoValue ? null : this.string(this.tripHeadsign[trip]);
+  }
+
+  /** Stops the trip calls at, in order. */
+  tripStops(trip: number): Int32Array {
+    const pattern = this.tripPattern[trip];
+    return this.patternStops.subarray(
+      this.patternStart[pattern],
+      this.patternStart[pattern + 1]
+    );
+  }
+
+  /** Scheduled arrival at the trip's n-th stop. */
+  arrival(trip: number, n: number): number {
+    const offset = this.timingStart[this.tripTiming[trip]] + n * 2;
+    return this.tripStart[trip] + this.timingOffsets[offset];
+  }
+
+  /** Scheduled departure from the trip's n-th stop. */
+  departure(trip: number, n: number): number {
+    const offset = this.timingStart[this.tripTiming[trip]] + n * 2 + 1;
+    return this.tripStart[trip] + this.timingOffsets[offset];
+  }
+
+  /** Position of the trip's shape in shapeIds, or NoValue if not held. */
+  shape(trip: number): number {
+    const shapeId = this.tripShape[trip];
+    return shapeId === NoValue ? NoValue : binarySearch(this.shapeIds, shapeId);
+  }
+
+  /** Latitudes and longitudes of a shape's points, in order. */
+  shapePoints(shape: number): [Float64Array, Float64Array] {
+    const start = this.shapeStart[shape];
+    const end = this.shapeStart[shape + 1];
+    return [
+      this.shapeLat.subarray(start, end),
+      this.shapeLon.subarray(start, end),
+    ];
+  }
+
+  /** Up to count stops nearest a point, nearest first. */
+  nearestStops(lat: number, lon: number, count: number): number[] {
+    return this.stopIndex.nearest(mercatorX(lon), mercatorY(lat), count);
+  }
+}
+
+let loading: Promise<GtfsIndex | null> | null = null;
+
+/**
+ * Fetches and decodes the index at VITE_GTFS_INDEX_URL the first time it is
+ * asked for, built by `npm run gtfs`. Resolves to null when no URL is
+ * configured. Relative URLs resolve against base, the page's URL, since the
+ * worker's own location is a blob URL.
+ */
+export function loadGtfsIndex(base: string): Promise<GtfsIndex | null> {
+  if (loading === null) {
+    const url = import.meta.env.VITE_GTFS_INDEX_URL;
+    loading = url
+      ? fetch(new URL(url, base))
+          .then((response) => {
+            if (!response.ok) {
+              throw new Error(`HTTP error! Status: ${response.status}`);
+            }
+            return response.arrayBuffer();
+          })
+          .then(gunzip)
+          .then((data) => new GtfsIndex(new Uint8Array(data)))
+      : Promise.resolve(null);
+    // Let a failed load be retried.
+    loading.catch(() => (loading = null));
+  }
+  return loading;
+}
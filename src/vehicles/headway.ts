@@ -0,0 +1,242 @@
+import railCorridors from "./railCorridors.json";
+import { RailStation, RailStations } from "./stations";
+import { grown, NoValue, VehicleStore } from "./store";
+
+// Vehicles further than this from their line's corridor, like buses heading
+// to or from the depot, are left out.
+const maxCorridorMetres = 1500;
+// A vehicle's direction is decided once it has moved this far along the
+// corridor, so GPS jitter at a stop doesn't flip it.
+const directionMetres = 50;
+// Gaps under this are always bunching, however sparse the service.
+const bunchedMetres = 300;
+// Gaps compared with the mean gap between vehicles going the same way.
+const bunchedRatio = 0.25;
+const largeGapRatio = 2;
+const metresPerDegree = 111195;
+
+/** Towards the end of the corridor, back towards Wellington, or unknown. */
+export type Direction = 1 | -1 | 0;
+
+export interface HeadwayVehicle {
+  vehicleId: string;
+  /** Metres along the corridor from its first station. */
+  chainage: number;
+  direction: Direction;
+  /** Metres to the next vehicle ahead going the same way, if any. */
+  gap: number | null;
+  status: "ok" | "bunched" | "gap";
+}
+
+export interface HeadwayLine {
+  lineName: string;
+  length: number;
+  stations: { name: string; chainage: number }[];
+  /** In corridor order. */
+  vehicles: HeadwayVehicle[];
+}
+
+/** A rail line as straight runs between its stations, in local metres. */
+class Corridor {
+  readonly x: Float64Array;
+  readonly y: Float64Array;
+  readonly chainage: Float64Array;
+  readonly scale: number;
+
+  constructor(readonly stations: RailStation[]) {
+    this.scale = Math.cos((stations[0].lat * Math.PI) / 180);
+    this.x = Float64Array.from(stations, ({ lon }) => this.projectX(lon));
+    this.y = Float64Array.from(stations, ({ lat }) => this.projectY(lat));
+    this.chainage = new Float64Array(stations.length);
+    for (let i = 1; i < stations.length; i++) {
+      this.chainage[i] =
+        this.chainage[i - 1] +
+        Math.hypot(this.x[i] - this.x[i - 1], this.y[i] - this.y[i - 1]);
+    }
+  }
+
+  get length(): number {
+    return this.chainage[this.chainage.length - 1];
+  }
+
+  projectX(lon: number): number {
+    return lon * metresPerDegree * this.scale;
+  }
+
+  projectY(lat: number): number {
+    return lat * metresPerDegree;
+  }
+
+  /** Chainage of the nearest point on the corridor, or NaN if too far. */
+  locate(lat: number, lon: number): number {
+    const px = this.projectX(lon);
+    const py = this.projectY(lat);
+    let best = NaN;
+    let bestDistance = maxCorridorMetres * maxCorridorMetres;
+    for (let i = 0; i < this.x.length - 1; i++) {
+      const dx = this.x[i + 1] - this.x[i];
+      const dy = this.y[i + 1] - this.y[i];
+      const length = dx * dx + dy * dy;
+      const t =
+        length === 0
+          ? 0
+          : Math.min(
+              1,
+              Math.max(
+                0,
+                ((px - this.x[i]) * dx + (py - this.y[i]) * dy) / length
+              )
+            );
+      const ex = this.x[i] + dx * t - px;
+      const ey = this.y[i] + dy * t - py;
+      const distance = ex * ex + ey * ey;
+      if (distance <= bestDistance) {
+        bestDistance = distance;
+        best =
+          this.chainage[i] + (this.chainage[i + 1] - this.chainage[i]) * t;
+      }
+    }
+    return best;
+  }
+}
+
+const corridors = new Map<string, Corridor>();
+for (const [lineName, names] of Object.entries(railCorridors)) {
+  const stations = names.map((name) => {
+    const station = RailStations.find((station) => station.name === name);
+    if (station === undefined) throw new Error(`Unknown station ${name}`);
+    return station;
+  });
+  corridors.set(lineName, new Corridor(stations));
+}
+
+/**
+ * Orders each railbus line's vehicles along its corridor and measures the
+ * gaps between them. State is kept per store slot and each line's order is
+ * carried between polls, so a poll only repairs the order with an insertion
+ * sort, which is linear when vehicles have barely moved past each other.
+ */
+export class HeadwayMonitor {
+  private chainage = new Float64Array(0);
+  private anchor = new Float64Array(0);
+  private direction = new Int8Array(0);
+  /** The vehicle string index each slot's state belongs to. */
+  private vehicle = new Int32Array(0);
+  private readonly order = new Map<string, number[]>();
+
+  update(store: VehicleStore): HeadwayLine[] {
+    this.grow(store.slotCount);
+    const members = new Map<string, Set<number>>();
+    for (const lineName of corridors.keys()) members.set(lineName, new Set());
+
+    for (let slot = 0; slot < store.slotCount; slot++) {
+      if (!store.isLive(slot)) continue;
+      const lineName = store.strings.get(store.railbus[slot]);
+      const corridor = lineName === null ? undefined : corridors.get(lineName);
+      if (corridor === undefined) continue;
+      const chainage = corridor.locate(
+        store.drawnLat(slot),
+        store.drawnLon(slot)
+      );
+      if (isNaN(chainage)) continue;
+
+      if (this.vehicle[slot] !== store.vehicle[slot]) {
+        this.vehicle[slot] = store.vehicle[slot];
+        this.anchor[slot] = chainage;
+        this.direction[slot] = 0;
+      } else if (Math.abs(chainage - this.anchor[slot]) > directionMetres) {
+        this.direction[slot] = chainage > this.anchor[slot] ? 1 : -1;
+        this.anchor[slot] = chainage;
+      }
+      this.chainage[slot] = chainage;
+      (members.get(lineName as string) as Set<number>).add(slot);
+    }
+
+    const lines: HeadwayLine[] = [];
+    for (const [lineName, corridor] of corridors) {
+      const slots = members.get(lineName) as Set<number>;
+      const order = (this.order.get(lineName) ?? []).filter((slot) =>
+        slots.delete(slot)
+      );
+      // Whatever is left in slots joined the line this poll.
+      order.push(...slots);
+      this.sort(order);
+      this.order.set(lineName, order);
+      if (order.length > 0) {
+        lines.push(this.measure(store, lineName, corridor, order));
+      }
+    }
+    return lines;
+  }
+
+  /** Insertion sort by chainage; close to linear on last poll's order. */
+  private sort(order: number[]) {
+    const { chainage } = this;
+    for (let i = 1; i < order.length; i++) {
+      const slot = order[i];
+      let j = i - 1;
+      while (j >= 0 && chainage[order[j]] > chainage[slot]) {
+        order[j + 1] = order[j];
+        j--;
+      }
+      order[j + 1] = slot;
+    }
+  }
+
+  private measure(
+    store: VehicleStore,
+    lineName: string,
+    corridor: Corridor,
+    order: number[]
+  ): HeadwayLine {
+    const vehicles: HeadwayVehicle[] = order.map((slot) => ({
+      vehicleId: store.strings.get(store.vehicle[slot]) as string,
+      chainage: this.chainage[slot],
+      direction: this.direction[slot] as Direction,
+      gap: null,
+      status: "ok",
+    }));
+
+    for (const direction of [1, -1] as const) {
+      const going = vehicles.filter((v) => v.direction === direction);
+      if (direction === -1) going.reverse();
+      // Each vehicle's gap is to the one in front of it.
+      for (let i = 0; i < going.length - 1; i++) {
+        going[i].gap = Math.abs(going[i + 1].chainage - going[i].chainage);
+      }
+      if (going.length < 2) continue;
+      const meanGap =
+        Math.abs(going[going.length - 1].chainage - going[0].chainage) /
+        (going.length - 1);
+      for (const vehicle of going) {
+        if (vehicle.gap === null) continue;
+        if (
+          vehicle.gap < bunchedMetres ||
+          vehicle.gap < meanGap * bunchedRatio
+        ) {
+          vehicle.status = "bunched";
+        } else if (vehicle.gap > meanGap * largeGapRatio) {
+          vehicle.status = "gap";
+        }
+      }
+    }
+
+    return {
+      lineName,
+      length: corridor.length,
+      stations: corridor.stations.map(({ name }, i) => ({
+        name,
+        chainage: corridor.chainage[i],
+      })),
+      vehicles,
+    };
+  }
+
+  private grow(capacity: number) {
+    if (this.vehicle.length >= capacity) return;
+    this.chainage = grown(this.chainage, capacity, 0);
+    this.anchor = grown(this.anchor, capacity, 0);
+    this.direction = grown(this.direction, capacity, 0);
+    this.vehicle = grown(this.vehicle, capacity, NoValue);
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Recent observations for every store slot, in fixed-size rings laid out
+ * back to back in typed arrays. Recording a point overwrites the oldest one
+ * once a ring is full, so steady-state polls never allocate.
+ */
+export class ObservationHistory {
+  lat: Float32Array;
+  lon: Float32Array;
+  timestamp: Float64Array;
+  private head: Int32Array;
+  private count: Int32Array;
+
+  constructor(
+    /** Points kept per vehicle. */
+    readonly length: number,
+    slots: number
+  ) {
+    this.lat = new Float32Array(slots * length);
+    this.lon = new Float32Array(slots * length);
+    this.timestamp = new Float64Array(slots * length);
+    this.head = new Int32Array(slots);
+    this.count = new Int32Array(slots);
+  }
+
+  record(slot: number, lat: number, lon: number, timestamp: number) {
+    const base = slot * this.length;
+    const head = this.head[slot];
+    this.lat[base + head] = lat;
+    this.lon[base + head] = lon;
+    this.timestamp[base + head] = timestamp;
+    this.head[slot] = head + 1 === this.length ? 0 : head + 1;
+    if (this.count[slot] < this.length) this.count[slot] += 1;
+  }
+
+  clear(slot: number) {
+    this.head[slot] = 0;
+    this.count[slot] = 0;
+  }
+
+  size(slot: number): number {
+    return this.count[slot];
+  }
+
+  /** Timestamp of the newest point for a slot, or -Infinity if empty. */
+  latest(slot: number): number {
+    if (this.count[slot] === 0) return -Infinity;
+    const head = this.head[slot];
+    const index = (head === 0 ? this.length : head) - 1;
+    return this.timestamp[slot * this.length + index];
+  }
+
+  /**
+   * Visits a slot's points from oldest to newest, skipping any older than
+   * since. The callback gets the index of the point in the backing arrays.
+   */
+  forEach(slot: number, since: number, callback: (index: number) => void) {
+    const base = slot * this.length;
+    const count = this.count[slot];
+    let index = (this.head[slot] - count + this.length) % this.length;
+    for (let n = 0; n < count; n++) {
+      if (this.timestamp[base + index] >= since) callback(base + index);
+      index = index + 1 === this.length ? 0 : index + 1;
+    }
+  }
+
+  grow(slots: number) {
+    const lat = new Float32Array(slots * this.length);
+    const lon = new Float32Array(slots * this.length);
+    const timestamp = new Float64Array(slots * this.length);
+    const head = new Int32Array(slots);
+    const count = new Int32Array(slots);
+    lat.set(this.lat);
+    lon.set(this.lon);
+    timestamp.set(this.timestamp);
+    head.set(this.head);
+    count.set(this.count);
+    this.lat = lat;
+    this.lon = lon;
+    this.timestamp = timestamp;
+    this.head = head;
+    this.count = count;
+  }
+}
@@ -0,0 +1,88 @@
+const openBrace = 123; // {
+const closeBrace = 125; // }
+const openBracket = 91; // [
+const closeBracket = 93; // ]
+const quote = 34; // "
+const backslash = 92; // \
+const comma = 44; // ,
+
+function isWhitespace(code: number): boolean {
+  return code === 32 || code === 10 || code === 13 || code === 9;
+}
+
+/**
+ * Splits a top-level JSON array into its elements as text arrives, so each
+ * element can be parsed and handled without waiting for the whole document.
+ * Only element boundaries are tracked here; each element is still parsed
+ * with JSON.parse.
+ */
+export class JsonArrayScanner {
+  private buffer = "";
+  private position = 0;
+  private depth = 0;
+  private inString = false;
+  private escaped = false;
+  private elementStart = -1;
+  private closed = false;
+
+  push(text: string, onElement: (value: unknown) => void) {
+    this.buffer += text;
+    const buffer = this.buffer;
+    for (let i = this.position; i < buffer.length; i++) {
+      const code = buffer.charCodeAt(i);
+      if (this.inString) {
+        if (this.escaped) this.escaped = false;
+        else if (code === backslash) this.escaped = true;
+        else if (code === quote) this.inString = false;
+        continue;
+      }
+      if (isWhitespace(code)) continue;
+      if (this.closed) throw new SyntaxError("Unexpected data after array");
+
+      if (this.depth === 0) {
+        if (code !== openBracket) {
+          throw new SyntaxError("Expected a JSON array");
+        }
+        this.depth = 1;
+        continue;
+      }
+
+      if (this.depth === 1) {
+        if (code === comma || code === closeBracket) {
+          if (this.elementStart >= 0) {
+            onElement(JSON.parse(buffer.slice(this.elementStart, i)));
+            this.elementStart = -1;
+          }
+          if (code === closeBracket) {
+            this.depth = 0;
+            this.closed = true;
+          }
+          continue;
+        }
+        if (this.elementStart < 0) this.elementStart = i;
+      }
+
+      if (code === quote) {
+        this.inString = true;
+      } else if (code === openBrace || code === openBracket) {
+        this.depth += 1;
+      } else if (code === closeBrace || code === closeBracket) {
+        this.depth -= 1;
+        if (this.depth === 1) {
+          onElement(JSON.parse(buffer.slice(this.elementStart, i + 1)));
+          this.elementStart = -1;
+        }
+      }
+    }
+
+    // Drop everything already handed out, keeping any partial element.
+    const keepFrom = this.elementStart >= 0 ? this.elementStart : buffer.length;
+    this.buffer = buffer.slice(keepFrom);
+    this.position = buffer.length - keepFrom;
+    if (this.elementStart >= 0) this.elementStart = 0;
+  }
+
+  end() {
+    if (!this.closed) throw new SyntaxError("Unexpected end of JSON array");
+  }
+}
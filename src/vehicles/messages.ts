@@ -0,0 +1,30 @@
+import type { VehicleFrame } from "./frame";
+import type { Bounds } from "./geo";
+import type { HeadwayLine } from "./headway";
+import type { StationArrivals } from "./predictions";
+import type { RailbusRouteTable } from "./railbus";
+import type { ReplayState } from "./replay";
+import type { TrailProperties } from "./trails";
+
+export type VehicleWorkerRequest =
+  | { type: "start"; pollRate: number; baseUrl: string }
+  | { type: "visibility"; hidden: boolean }
+  | { type: "viewport"; bounds: Bounds }
+  | { type: "replayOpen" }
+  | { type: "replayControl"; playing?: boolean; speed?: number; time?: number }
+  | { type: "replayClose" }
+  | { type: "replayExport" }
+  | { type: "replayImport"; data: ArrayBuffer };
+
+export type VehicleWorkerResponse =
+  | { type: "frame"; frame: VehicleFrame }
+  | {
+      type: "trails";
+      trails: GeoJSON.FeatureCollection<GeoJSON.LineString, TrailProperties>;
+    }
+  | { type: "routes"; routes: RailbusRouteTable }
+  | { type: "headways"; lines: HeadwayLine[] }
+  | { type: "arrivals"; time: number; stations: StationArrivals[] }
+  | { type: "replayState"; state: ReplayState | null }
+  | { type: "recordingExport"; data: ArrayBuffer }
+  | { type: "error"; message: string };
@@ -0,0 +1,58 @@
+import { z } from "zod";
+
+export interface VehicleObservation {
+  vehicleId: string;
+  timestamp: string;
+  lat: number;
+  lon: number;
+  bearing: number | null;
+  tripId: string | null;
+  routeId: string | null;
+  railbusRouteName: string | null;
+  tripStartTime: string | null;
+  currentPassengerCount: number | null;
+  totalPassengerCount: number | null;
+}
+
+export const RawVehicleObservationSchema = z.object({
+  vehicleId: z.string(),
+  locationDetails: z.object({
+    simpleLocationDetails: z.object({
+      timestamp: z.string().datetime(),
+      lat: z.number().gte(-90).lte(90),
+      lon: z.number().gte(-180).lte(180),
+      bearing: z.number().nullable(),
+      bearingAccuracy: z.number().nullable(),
+      speed: z.number().nullable(),
+      speedAccuracy: z.number().nullable(),
+    }),
+  }),
+  tripDetails: z.object({
+    tripId: z.string().nullable(),
+    routeId: z.string().nullable(),
+    blockId: z.string().nullable(),
+    tripShortName: z.string().nullable(),
+    routeShortName: z.string().nullable(),
+    tripStartTime: z.string().nullable(),
+    currentPassengerCount: z.number().nullable(),
+    totalPassengerCount: z.number().nullable(),
+  }),
+});
+
+export function parseVehicleObservation(
+  raw: z.infer<typeof RawVehicleObservationSchema>
+): VehicleObservation {
+  return {
+    vehicleId: raw.vehicleId.slice(5),
+    timestamp: raw.locationDetails.simpleLocationDetails.timestamp,
+    lat: raw.locationDetails.simpleLocationDetails.lat,
+    lon: raw.locationDetails.simpleLocationDetails.lon,
+    bearing: raw.locationDetails.simpleLocationDetails.bearing,
+    tripId: raw.tripDetails.tripId,
+    routeId: raw.tripDetails.routeId,
+    railbusRouteName: null,
+    tripStartTime: raw.tripDetails.tripStartTime,
+    currentPassengerCount: raw.tripDetails.currentPassengerCount,
+    totalPassengerCount: raw.tripDetails.totalPassengerCount,
+  };
+}
@@ -0,0 +1,208 @@
+import {
+  decodeObservations,
+  encodeObservations,
+  NoValue,
+  ObservationChunkView,
+} from "./chunkCodec";
+import { VehicleObservation } from "./observation";
+
+const databaseName = "railbus";
+const chunkStore = "observationChunks";
+const bucketIndex = "bucket";
+
+/** Observations are grouped into time buckets of this length. */
+export const BucketLength = 10 * 60 * 1000;
+
+interface ObservationChunk {
+  id?: number;
+  /** Start of the bucket, in epoch ms. */
+  bucket: number;
+  data: ArrayBuffer;
+}
+
+function requestResult<T>(request: IDBRequest<T>): Promise<T> {
+  return new Promise((resolve, reject) => {
+    request.onsuccess = () => resolve(request.result);
+    request.onerror = () => reject(request.error);
+  });
+}
+
+function transactionDone(transaction: IDBTransaction): Promise<void> {
+  return new Promise((resolve, reject) => {
+    transaction.oncomplete = () => resolve();
+    transaction.onerror = () => reject(transaction.error);
+    transaction.onabort = () => reject(transaction.error);
+  });
+}
+
+function bucketOf(timestamp: number): number {
+  return timestamp - (timestamp % BucketLength);
+}
+
+export function openObservationDatabase(): Promise<IDBDatabase> {
+  const request = indexedDB.open(databaseName, 1);
+  request.onupgradeneeded = () => {
+    const store = request.result.createObjectStore(chunkStore, {
+      keyPath: "id",
+      autoIncrement: true,
+    });
+    store.createIndex(bucketIndex, "bucket");
+  };
+  return requestResult(request);
+}
+
+/** Encoded chunks for every bucket that overlaps since or later. */
+export async function readChunks(
+  database: IDBDatabase,
+  since: number
+): Promise<ArrayBuffer[]> {
+  const transaction = database.transaction(chunkStore, "readonly");
+  const chunks: ObservationChunk[] = await requestResult(
+    transaction
+      .objectStore(chunkStore)
+      .index(bucketIndex)
+      .getAll(IDBKeyRange.lowerBound(bucketOf(since)))
+  );
+  return chunks.map((chunk) => chunk.data);
+}
+
+/**
+ * Calls visit with every observation recorded at or after since, reading
+ * fields straight out of the stored chunks into one reused object alongside
+ * its numeric timestamp. Chunks come back ordered by bucket and then by
+ * write order, so each vehicle's observations arrive oldest first without
+ * sorting. Returns the number of observations visited.
+ */
+export async function readObservations(
+  database: IDBDatabase,
+  since: number,
+  visit: (observation: VehicleObservation, timestamp: number) => void
+): Promise<number> {
+  const chunks = await readChunks(database, since);
+  const observation: VehicleObservation = {
+    vehicleId: "",
+    timestamp: "",
+    lat: 0,
+    lon: 0,
+    bearing: null,
+    tripId: null,
+    routeId: null,
+    railbusRouteName: null,
+    tripStartTime: null,
+    currentPassengerCount: null,
+    totalPassengerCount: null,
+  };
+  let count = 0;
+  for (const buffer of chunks) {
+    const chunk = new ObservationChunkView(buffer);
+    const string = (index: number) =>
+      index === NoValue ? null : chunk.strings[index];
+    const number = (value: number) => (value === NoValue ? null : value);
+    for (let i = 0; i < chunk.count; i++) {
+      const timestamp = chunk.timestamp(i);
+      if (timestamp < since) continue;
+      const bearing = chunk.bearing(i);
+      observation.vehicleId = chunk.strings[chunk.vehicle(i)];
+      observation.lat = chunk.lat(i);
+      observation.lon = chunk.lon(i);
+      observation.bearing = isNaN(bearing) ? null : bearing;
+      observation.tripId = string(chunk.trip(i));
+      observation.routeId = string(chunk.route(i));
+      observation.tripStartTime = string(chunk.tripStartTime(i));
+      observation.currentPassengerCount = number(
+        chunk.currentPassengerCount(i)
+      );
+      observation.totalPassengerCount = number(chunk.totalPassengerCount(i));
+      visit(observation, timestamp);
+      count++;
+    }
+  }
+  return count;
+}
+
+/**
+ * Buffers observations in memory and writes them to IndexedDB in batches,
+ * one binary chunk per time bucket, so polls never wait on storage. Each
+ * flush also drops buckets past the retention period and merges the chunks
+ * of closed buckets into one.
+ */
+export class ObservationWriter {
+  private pending: VehicleObservation[] = [];
+  private timeoutId: ReturnType<typeof setTimeout> | undefined;
+  private flushing: Promise<void> = Promise.resolve();
+  /** Buckets written to since they were last compacted. */
+  private readonly openBuckets = new Set<number>();
+
+  constructor(
+    private readonly database: IDBDatabase,
+    private readonly flushDelay: number,
+    private readonly retention: number
+  ) {}
+
+  add(observation: VehicleObservation) {
+    this.pending.push(observation);
+    this.timeoutId ??= setTimeout(() => this.flushPending(), this.flushDelay);
+  }
+
+  /** Writes anything still buffered without waiting for the flush delay. */
+  flushPending(): Promise<void> {
+    clearTimeout(this.timeoutId);
+    this.timeoutId = undefined;
+    this.flushing = this.flushing
+      .then(() => this.flush())
+      .catch((error) => console.error("Error saving history:", error));
+    return this.flushing;
+  }
+
+  private async flush() {
+    const observations = this.pending;
+    this.pending = [];
+    const byBucket = new Map<number, VehicleObservation[]>();
+    for (const observation of observations) {
+      const bucket = bucketOf(Date.parse(observation.timestamp));
+      const bucketObservations = byBucket.get(bucket);
+      if (bucketObservations === undefined) {
+        byBucket.set(bucket, [observation]);
+      } else {
+        bucketObservations.push(observation);
+      }
+    }
+
+    const transaction = this.database.transaction(chunkStore, "readwrite");
+    const store = transaction.objectStore(chunkStore);
+    for (const [bucket, bucketObservations] of byBucket) {
+      store.add({ bucket, data: encodeObservations(bucketObservations) });
+      this.openBuckets.add(bucket);
+    }
+    const expired = bucketOf(Date.now() - this.retention);
+    const index = store.index(bucketIndex);
+    const expiredKeys = await requestResult(
+      index.getAllKeys(IDBKeyRange.upperBound(expired, true))
+    );
+    for (const key of expiredKeys) store.delete(key);
+    await transactionDone(transaction);
+
+    await this.compact(bucketOf(Date.now()));
+  }
+
+  /** Merges the chunks of buckets written to that closed before current. */
+  private async compact(current: number) {
+    const closed = [...this.openBuckets].filter((bucket) => bucket < current);
+    if (closed.length === 0) return;
+    const transaction = this.database.transaction(chunkStore, "readwrite");
+    const store = transaction.objectStore(chunkStore);
+    for (const bucket of closed) {
+      this.openBuckets.delete(bucket);
+      const chunks: ObservationChunk[] = await requestResult(
+        store.index(bucketIndex).getAll(IDBKeyRange.only(bucket))
+      );
+      if (chunks.length < 2) continue;
+      const observations = chunks.flatMap((chunk) =>
+        decodeObservations(chunk.data)
+      );
+      for (const chunk of chunks) store.delete(chunk.id as number);
+      store.add({ bucket, data: encodeObservations(observations) });
+    }
+    await transactionDone(transaction);
+  }
+}
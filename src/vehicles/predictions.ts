@@ -0,0 +1,183 @@
+import { distanceMetres } from "./geo";
+import { Direction, HeadwayLine } from "./headway";
+import { railbusShapeProgress } from "./shapes";
+import { RailStations } from "./stations";
+import { VehicleStore } from "./store";
+
+// Observed speeds are averaged over this much history.
+const speedWindow = 5 * 60 * 1000;
+// Used until a vehicle has a minute of history, and the bounds on averages,
+// so a bus held at a stop doesn't predict an arrival next week.
+const defaultSpeed = 8;
+const minSpeed = 3;
+const maxSpeed = 25;
+// Roads wind more than the straight runs between stations.
+const corridorDetour = 1.3;
+// Predictions are kept until the vehicle moves this far, changes trip or
+// direction, or this much time passes without it moving.
+const movedMetres = 30;
+const maxAge = 60 * 1000;
+// Arrivals kept per station, soonest first.
+const arrivalsPerStation = 4;
+// Arrivals this overdue are dropped; the bus has probably been and gone.
+const overdue = 30 * 1000;
+
+export interface StationArrival {
+  lineName: string;
+  /** The station at the end of the corridor the vehicle is heading for. */
+  destination: string;
+  vehicleId: string;
+  /** Epoch milliseconds. */
+  arrival: number;
+}
+
+export interface StationArrivals {
+  station: string;
+  arrivals: StationArrival[];
+}
+
+interface Prediction {
+  lat: number;
+  lon: number;
+  tripId: string | null;
+  direction: Direction;
+  time: number;
+  destination: string;
+  /** Index into the line's stations, and the epoch-ms arrival there. */
+  stations: number[];
+  arrivals: number[];
+}
+
+const stationsByName = new Map(
+  RailStations.map((station) => [station.name, station])
+);
+
+/** Mean speed over recent history in metres per second, within bounds. */
+function recentSpeed(store: VehicleStore, slot: number): number {
+  const { history } = store;
+  let metres = 0;
+  let first = NaN;
+  let last = NaN;
+  let previous = -1;
+  history.forEach(slot, store.timestamp[slot] - speedWindow, (index) => {
+    if (previous >= 0) {
+      metres += distanceMetres(
+        history.lat[previous],
+        history.lon[previous],
+        history.lat[index],
+        history.lon[index]
+      );
+    } else {
+      first = history.timestamp[index];
+    }
+    last = history.timestamp[index];
+    previous = index;
+  });
+  const elapsed = (last - first) / 1000;
+  if (!(elapsed >= 60)) return defaultSpeed;
+  return Math.min(maxSpeed, Math.max(minSpeed, metres / elapsed));
+}
+
+function predict(
+  store: VehicleStore,
+  slot: number,
+  line: HeadwayLine,
+  chainage: number,
+  direction: Direction
+): Prediction {
+  const lat = store.drawnLat(slot);
+  const lon = store.drawnLon(slot);
+  const tripId = store.strings.get(store.trip[slot]);
+  const time = store.timestamp[slot];
+  const speed = recentSpeed(store, slot);
+  const last = line.stations.length - 1;
+  const prediction: Prediction = {
+    lat,
+    lon,
+    tripId,
+    direction,
+    time,
+    destination: line.stations[direction > 0 ? last : 0].name,
+    stations: [],
+    arrivals: [],
+  };
+  line.stations.forEach(({ name, chainage: stationChainage }, index) => {
+    const ahead = (stationChainage - chainage) * direction;
+    const station = stationsByName.get(name);
+    if (ahead <= 0 || station === undefined) return;
+    // store.progress is where the vehicle snapped onto its trip's shape, and
+    // NaN when it didn't, in which case the corridor is used instead. The
+    // shape can know the vehicle is past a station the corridor still puts
+    // ahead of it.
+    const alongShape =
+      railbusShapeProgress(tripId, station.lat, station.lon) -
+      store.progress[slot];
+    if (alongShape <= 0) return;
+    const metres = isNaN(alongShape) ? ahead * corridorDetour : alongShape;
+    prediction.stations.push(index);
+    prediction.arrivals.push(time + (metres / speed) * 1000);
+  });
+  return prediction;
+}
+
+/**
+ * Estimates when railbus vehicles reach the stations ahead of them on their
+ * line. Distance comes from the trip's shape when the vehicle is snapped
+ * onto it, or the line's corridor otherwise, and speed from the vehicle's
+ * own recent history. Predictions are cached per vehicle as absolute times, so a poll
+ * only recomputes the vehicles that have actually moved.
+ */
+export class ArrivalPredictor {
+  private cache = new Map<string, Prediction>();
+
+  /** Upcoming arrivals at each station, as of now (epoch ms). */
+  update(
+    store: VehicleStore,
+    lines: HeadwayLine[],
+    now: number
+  ): StationArrivals[] {
+    const cache = new Map<string, Prediction>();
+    const byStation = new Map<string, StationArrival[]>();
+    for (const line of lines) {
+      for (const { vehicleId, chainage, direction } of line.vehicles) {
+        const slot = store.slotOf(vehicleId);
+        if (slot === undefined || direction === 0) continue;
+        const lat = store.drawnLat(slot);
+        const lon = store.drawnLon(slot);
+        const tripId = store.strings.get(store.trip[slot]);
+        const time = store.timestamp[slot];
+        const cached = this.cache.get(vehicleId);
+        const prediction =
+          cached === undefined ||
+          cached.tripId !== tripId ||
+          cached.direction !== direction ||
+          time - cached.time > maxAge ||
+          distanceMetres(cached.lat, cached.lon, lat, lon) > movedMetres
+            ? predict(store, slot, line, chainage, direction)
+            : cached;
+        cache.set(vehicleId, prediction);
+        prediction.stations.forEach((index, n) => {
+          const station = line.stations[index].name;
+          let arrivals = byStation.get(station);
+          if (arrivals === undefined) byStation.set(station, (arrivals = []));
+          arrivals.push({
+            lineName: line.lineName,
+            destination: prediction.destination,
+            vehicleId,
+            arrival: prediction.arrivals[n],
+          });
+        });
+      }
+    }
+    // Vehicles that left their line drop out of the cache here.
+    this.cache = cache;
+
+    return RailStations.flatMap(({ name }) => {
+      const arrivals = (byStation.get(name) ?? [])
+        .filter(({ arrival }) => arrival > now - overdue)
+        .sort((a, b) => a.arrival - b.arrival)
+        .slice(0, arrivalsPerStation);
+      return arrivals.length > 0 ? [{ station: name, arrivals }] : [];
+    });
+  }
+}
@@ -0,0 +1,107 @@
+import type { ExpressionSpecification } from "maplibre-gl";
+import { z } from "zod";
+import defaultRailbusRoutes from "./railbusRoutes.json";
+
+// Route numbers are expanded into a dense array, so a remote table must not
+// be able to ask for an unbounded one.
+const maxRouteNumber = 9999;
+
+/**
+ * Lines the vehicle layer has styles for; it draws each line in its own
+ * style after the built-in ones.
+ */
+export const MaxRailbusLines = 14;
+
+const RouteNumberSchema = z.number().int().nonnegative().lte(maxRouteNumber);
+
+const RailbusRouteTableSchema = z
+  .record(
+    z
+      .object({
+        start: RouteNumberSchema,
+        end: RouteNumberSchema,
+        colour: z.string().regex(/^#[0-9a-f]{6}$/i),
+      })
+      .refine(({ start, end }) => start <= end, {
+        message: "start must not be after end",
+      })
+  )
+  .refine((routes) => Object.keys(routes).length <= MaxRailbusLines, {
+    message: `at most ${MaxRailbusLines} lines are supported`,
+  });
+
+export type RailbusRouteTable = z.infer<typeof RailbusRouteTableSchema>;
+
+export const RailbusRoutes: RailbusRouteTable = defaultRailbusRoutes;
+
+const fallbackColour = "#FF0000";
+
+let railLineByRoute: (string | undefined)[] = [];
+let railLineIndices = new Map<string, number>();
+const railLineByRouteId = new Map<string, string | null>();
+
+/**
+ * Replaces the active route table. Lookups go through a dense array indexed
+ * by route number, so classifying a vehicle is a single array read.
+ */
+export function setRailbusRoutes(routes: RailbusRouteTable) {
+  railLineByRoute = [];
+  railLineIndices = new Map(
+    Object.keys(routes).map((railLineName, index) => [railLineName, index])
+  );
+  for (const [railLineName, range] of Object.entries(routes)) {
+    for (let route = range.start; route <= range.end; route++) {
+      railLineByRoute[route] = railLineName;
+    }
+  }
+  railLineByRouteId.clear();
+}
+
+setRailbusRoutes(RailbusRoutes);
+
+/**
+ * Fetches a replacement route table from VITE_RAILBUS_ROUTES_URL, so new
+ * replacement ranges can be added without rebuilding the app. Returns null
+ * when no URL is configured. Relative URLs resolve against base, the page's
+ * URL, since the worker's own location is a blob URL.
+ */
+export async function fetchRailbusRoutes(
+  base: string
+): Promise<RailbusRouteTable | null> {
+  const url = import.meta.env.VITE_RAILBUS_ROUTES_URL;
+  if (!url) return null;
+  const response = await fetch(new URL(url, base));
+  if (!response.ok) {
+    throw new Error(`HTTP error! Status: ${response.status}`);
+  }
+  return RailbusRouteTableSchema.parse(await response.json());
+}
+
+export function railbusRouteName(routeId: string | null): string | null {
+  if (routeId === null) return null;
+  let railLineName = railLineByRouteId.get(routeId);
+  if (railLineName === undefined) {
+    railLineName = railLineByRoute[parseInt(routeId, 10)] ?? null;
+    railLineByRouteId.set(routeId, railLineName);
+  }
+  return railLineName;
+}
+
+/** Position of the rail line in the active route table. */
+export function railbusLineIndex(railLineName: string): number {
+  return railLineIndices.get(railLineName) ?? -1;
+}
+
+/** Colours features by their railbusRouteName property. */
+export function railbusColourExpression(
+  routes: RailbusRouteTable
+): ExpressionSpecification | string {
+  const entries = Object.entries(routes);
+  if (entries.length === 0) return fallbackColour;
+  return [
+    "match",
+    ["get", "railbusRouteName"],
+    ...entries.flatMap(([railLineName, { colour }]) => [railLineName, colour]),
+    fallbackColour,
+  ] as ExpressionSpecification;
+}
@@ -0,0 +1,170 @@
+import { ObservationChunkView } from "./chunkCodec";
+import { VehicleObservation } from "./observation";
+import { NoValue, StringTable } from "./store";
+
+/** Granularity of the seek index. */
+const indexInterval = 60 * 1000;
+
+/**
+ * One array per observation field. String fields hold indices into the
+ * recording's StringTable, and missing values are NoValue (or NaN for
+ * bearing).
+ */
+export interface RecordingColumns {
+  timestamp: Float64Array;
+  lat: Float64Array;
+  lon: Float64Array;
+  bearing: Float32Array;
+  vehicle: Int32Array;
+  route: Int32Array;
+  trip: Int32Array;
+  tripStartTime: Int32Array;
+  currentPassengerCount: Int32Array;
+  totalPassengerCount: Int32Array;
+}
+
+export function emptyColumns(count: number): RecordingColumns {
+  return {
+    timestamp: new Float64Array(count),
+    lat: new Float64Array(count),
+    lon: new Float64Array(count),
+    bearing: new Float32Array(count),
+    vehicle: new Int32Array(count),
+    route: new Int32Array(count),
+    trip: new Int32Array(count),
+    tripStartTime: new Int32Array(count),
+    currentPassengerCount: new Int32Array(count),
+    totalPassengerCount: new Int32Array(count),
+  };
+}
+
+/**
+ * A recorded run of observations held as typed-array columns sorted by
+ * timestamp, with an index from each minute to its first observation so
+ * seeking never scans the recording.
+ */
+export class Recording implements RecordingColumns {
+  readonly count: number;
+  readonly start: number;
+  readonly end: number;
+
+  readonly timestamp: Float64Array;
+  readonly lat: Float64Array;
+  readonly lon: Float64Array;
+  readonly bearing: Float32Array;
+  readonly vehicle: Int32Array;
+  readonly route: Int32Array;
+  readonly trip: Int32Array;
+  readonly tripStartTime: Int32Array;
+  readonly currentPassengerCount: Int32Array;
+  readonly totalPassengerCount: Int32Array;
+  private readonly minuteIndex: Int32Array;
+
+  /** The columns must already be sorted by timestamp. */
+  constructor(
+    readonly strings: StringTable,
+    columns: RecordingColumns
+  ) {
+    const count = columns.timestamp.length;
+    this.count = count;
+    this.timestamp = columns.timestamp;
+    this.lat = columns.lat;
+    this.lon = columns.lon;
+    this.bearing = columns.bearing;
+    this.vehicle = columns.vehicle;
+    this.route = columns.route;
+    this.trip = columns.trip;
+    this.tripStartTime = columns.tripStartTime;
+    this.currentPassengerCount = columns.currentPassengerCount;
+    this.totalPassengerCount = columns.totalPassengerCount;
+
+    this.start = count > 0 ? this.timestamp[0] : 0;
+    this.end = count > 0 ? this.timestamp[count - 1] : 0;
+    const minutes = Math.floor((this.end - this.start) / indexInterval) + 1;
+    this.minuteIndex = new Int32Array(minutes + 1);
+    let observation = 0;
+    for (let minute = 0; minute <= minutes; minute++) {
+      const minuteStart = this.start + minute * indexInterval;
+      while (
+        observation < count &&
+        this.timestamp[observation] < minuteStart
+      ) {
+        observation++;
+      }
+      this.minuteIndex[minute] = observation;
+    }
+  }
+
+  /** Merges stored chunks into one recording, sorting them by timestamp. */
+  static fromChunks(chunks: ObservationChunkView[]): Recording {
+    const count = chunks.reduce((total, chunk) => total + chunk.count, 0);
+    const timestamp = new Float64Array(count);
+    let i = 0;
+    for (const chunk of chunks) {
+      for (let j = 0; j < chunk.count; j++) {
+        timestamp[i++] = chunk.timestamp(j);
+      }
+    }
+    const order = new Uint32Array(count).map((_, index) => index);
+    order.sort((a, b) => timestamp[a] - timestamp[b]);
+    // position[k] is where the k-th unsorted observation ends up.
+    const position = new Uint32Array(count);
+    order.forEach((unsorted, sorted) => (position[unsorted] = sorted));
+
+    const strings = new StringTable();
+    const columns = emptyColumns(count);
+    i = 0;
+    for (const chunk of chunks) {
+      // Chunk dictionaries are local, so map them onto the shared table.
+      const interned = chunk.strings.map((value) => strings.intern(value));
+      const string = (index: number) =>
+        index === NoValue ? NoValue : interned[index];
+      for (let j = 0; j < chunk.count; j++) {
+        const k = position[i++];
+        columns.timestamp[k] = chunk.timestamp(j);
+        columns.lat[k] = chunk.lat(j);
+        columns.lon[k] = chunk.lon(j);
+        columns.bearing[k] = chunk.bearing(j);
+        columns.vehicle[k] = string(chunk.vehicle(j));
+        columns.route[k] = string(chunk.route(j));
+        columns.trip[k] = string(chunk.trip(j));
+        columns.tripStartTime[k] = string(chunk.tripStartTime(j));
+        columns.currentPassengerCount[k] = chunk.currentPassengerCount(j);
+        columns.totalPassengerCount[k] = chunk.totalPassengerCount(j);
+      }
+    }
+    return new Recording(strings, columns);
+  }
+
+  /** Index of the first observation at or after time. */
+  indexAt(time: number): number {
+    if (time <= this.start) return 0;
+    if (time > this.end) return this.count;
+    const minute = Math.floor((time - this.start) / indexInterval);
+    let index = this.minuteIndex[minute];
+    while (index < this.count && this.timestamp[index] < time) index++;
+    return index;
+  }
+
+  /**
+   * Fills into with observation i. The timestamp string is left empty;
+   * callers use the numeric timestamp column instead.
+   */
+  read(i: number, into: VehicleObservation): VehicleObservation {
+    const bearing = this.bearing[i];
+    const current = this.currentPassengerCount[i];
+    const total = this.totalPassengerCount[i];
+    into.vehicleId = this.strings.get(this.vehicle[i]) as string;
+    into.timestamp = "";
+    into.lat = this.lat[i];
+    into.lon = this.lon[i];
+    into.bearing = isNaN(bearing) ? null : bearing;
+    into.tripId = this.strings.get(this.trip[i]);
+    into.routeId = this.strings.get(this.route[i]);
+    into.railbusRouteName = null;
+    into.tripStartTime = this.strings.get(this.tripStartTime[i]);
+    into.currentPassengerCount = current === NoValue ? null : current;
+    into.totalPassengerCount = total === NoValue ? null : total;
+    return into;
+  }
+}
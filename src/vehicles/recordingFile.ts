@@ -0,0 +1,124 @@
+import { ByteReader, ByteWriter, gunzip, gzip } from "./bytes";
+import { emptyColumns, Recording } from "./recording";
+import { StringTable } from "./store";
+
+// "RBRC" followed by a format version.
+const magic = [0x52, 0x42, 0x52, 0x43];
+const version = 1;
+// Positions are stored as integers of this many degrees (about 1 cm).
+const positionScale = 1e7;
+// Bearings are stored to a tenth of a degree.
+const bearingScale = 10;
+
+/**
+ * Serialises a recording for download. Fields are written column by column
+ * as varints: timestamps as deltas from the previous observation, positions
+ * as fixed-point deltas from the same vehicle's previous position, and IDs
+ * as indices into a shared string dictionary. Gzip then squeezes out what
+ * repetition is left, which is mostly the near-constant columns.
+ */
+export async function exportRecording(
+  recording: Recording
+): Promise<ArrayBuffer> {
+  const writer = new ByteWriter();
+  const count = recording.count;
+  for (const byte of magic) writer.byte(byte);
+  writer.byte(version);
+
+  const encoder = new TextEncoder();
+  const strings = recording.strings;
+  writer.varint(strings.size);
+  for (let i = 0; i < strings.size; i++) {
+    const bytes = encoder.encode(strings.get(i) as string);
+    writer.varint(bytes.length);
+    writer.raw(bytes);
+  }
+
+  writer.varint(count);
+  let previousTime = 0;
+  for (let i = 0; i < count; i++) {
+    writer.varint(recording.timestamp[i] - previousTime);
+    previousTime = recording.timestamp[i];
+  }
+  for (let i = 0; i < count; i++) writer.varint(recording.vehicle[i]);
+  for (const column of [recording.lat, recording.lon]) {
+    // Indexed by vehicle string index.
+    const previous = new Float64Array(strings.size);
+    for (let i = 0; i < count; i++) {
+      const vehicle = recording.vehicle[i];
+      const value = Math.round(column[i] * positionScale);
+      writer.signed(value - previous[vehicle]);
+      previous[vehicle] = value;
+    }
+  }
+  for (let i = 0; i < count; i++) {
+    const bearing = recording.bearing[i];
+    if (isNaN(bearing)) {
+      writer.varint(0);
+    } else {
+      const degrees = ((bearing % 360) + 360) % 360;
+      writer.varint(Math.round(degrees * bearingScale) + 1);
+    }
+  }
+  for (const column of [
+    recording.route,
+    recording.trip,
+    recording.tripStartTime,
+    recording.currentPassengerCount,
+    recording.totalPassengerCount,
+  ]) {
+    for (let i = 0; i < count; i++) writer.optional(column[i]);
+  }
+
+  return gzip(writer.finish());
+}
+
+/** Reads a file written by exportRecording. */
+export async function importRecording(data: ArrayBuffer): Promise<Recording> {
+  const reader = new ByteReader(new Uint8Array(await gunzip(data)));
+  for (const byte of magic) {
+    if (reader.byte() !== byte) throw new Error("Not a railbus recording");
+  }
+  const fileVersion = reader.byte();
+  if (fileVersion !== version) {
+    throw new Error(`Unsupported recording version ${fileVersion}`);
+  }
+
+  const decoder = new TextDecoder();
+  const strings = new StringTable();
+  const stringCount = reader.varint();
+  for (let i = 0; i < stringCount; i++) {
+    strings.intern(decoder.decode(reader.raw(reader.varint())));
+  }
+
+  const count = reader.varint();
+  const columns = emptyColumns(count);
+  let time = 0;
+  for (let i = 0; i < count; i++) {
+    time += reader.varint();
+    columns.timestamp[i] = time;
+  }
+  for (let i = 0; i < count; i++) columns.vehicle[i] = reader.varint();
+  for (const column of [columns.lat, columns.lon]) {
+    const previous = new Float64Array(stringCount);
+    for (let i = 0; i < count; i++) {
+      const vehicle = columns.vehicle[i];
+      previous[vehicle] += reader.signed();
+      column[i] = previous[vehicle] / positionScale;
+    }
+  }
+  for (let i = 0; i < count; i++) {
+    const bearing = reader.varint();
+    columns.bearing[i] = bearing === 0 ? NaN : (bearing - 1) / bearingScale;
+  }
+  for (const column of [
+    columns.route,
+    columns.trip,
+    columns.tripStartTime,
+    columns.currentPassengerCount,
+    columns.totalPassengerCount,
+  ]) {
+    for (let i = 0; i < count; i++) column[i] = reader.optional();
+  }
+  return new Recording(strings, columns);
+}
@@ -0,0 +1,137 @@
+import { VehicleObservation } from "./observation";
+import { Recording } from "./recording";
+import { VehicleStore } from "./store";
+
+// Replayed vehicles not observed for this long, in replay time, disappear.
+const staleAfter = 2 * 60 * 1000;
+const tickInterval = 250;
+
+export interface ReplayState {
+  start: number;
+  end: number;
+  time: number;
+  speed: number;
+  playing: boolean;
+}
+
+/**
+ * Plays a recording back into its own VehicleStore, so replayed frames and
+ * trails come out of exactly the same code as live ones. Playback walks a
+ * cursor forward through the recording; seeking resets the store and
+ * re-ingests just enough history to draw trails at the new time.
+ */
+export class Replay {
+  readonly store = new VehicleStore();
+  private time: number;
+  private speed = 1;
+  private playing = false;
+  private cursor = 0;
+  private lastTick = 0;
+  private intervalId: ReturnType<typeof setInterval> | undefined;
+  private readonly scratch: VehicleObservation = {
+    vehicleId: "",
+    timestamp: "",
+    lat: 0,
+    lon: 0,
+    bearing: null,
+    tripId: null,
+    routeId: null,
+    railbusRouteName: null,
+    tripStartTime: null,
+    currentPassengerCount: null,
+    totalPassengerCount: null,
+  };
+
+  constructor(
+    readonly recording: Recording,
+    /** How far back from the playhead to ingest after seeking. */
+    private readonly lookBack: number,
+    /** Called whenever the store or playback state changes. */
+    private readonly onUpdate: () => void
+  ) {
+    // No onUpdate here: the caller hasn't got hold of the replay yet, and
+    // publishes it once constructed.
+    this.time = recording.start;
+    this.moveTo(recording.start);
+  }
+
+  get state(): ReplayState {
+    return {
+      start: this.recording.start,
+      end: this.recording.end,
+      time: this.time,
+      speed: this.speed,
+      playing: this.playing,
+    };
+  }
+
+  seek(time: number) {
+    this.moveTo(time);
+    this.onUpdate();
+  }
+
+  setSpeed(speed: number) {
+    this.speed = speed;
+    this.onUpdate();
+  }
+
+  setPlaying(playing: boolean) {
+    clearInterval(this.intervalId);
+    this.intervalId = undefined;
+    this.playing = playing;
+    if (playing) {
+      if (this.time >= this.recording.end) this.moveTo(this.recording.start);
+      this.lastTick = performance.now();
+      this.intervalId = setInterval(() => this.tick(), tickInterval);
+    }
+    this.onUpdate();
+  }
+
+  close() {
+    clearInterval(this.intervalId);
+    this.intervalId = undefined;
+  }
+
+  private tick() {
+    const now = performance.now();
+    this.time = Math.min(
+      this.time + (now - this.lastTick) * this.speed,
+      this.recording.end
+    );
+    this.lastTick = now;
+    this.advance();
+    if (this.time >= this.recording.end) {
+      this.setPlaying(false);
+    } else {
+      this.onUpdate();
+    }
+  }
+
+  /** Moves the playhead and re-ingests the history leading up to it. */
+  private moveTo(time: number) {
+    this.time = Math.min(
+      Math.max(time, this.recording.start),
+      this.recording.end
+    );
+    this.store.clear();
+    this.cursor = this.recording.indexAt(this.time - this.lookBack);
+    this.advance();
+  }
+
+  /** Ingests every observation up to the playhead. */
+  private advance() {
+    const recording = this.recording;
+    this.store.beginPoll();
+    while (
+      this.cursor < recording.count &&
+      recording.timestamp[this.cursor] <= this.time
+    ) {
+      this.store.upsert(
+        recording.read(this.cursor, this.scratch),
+        recording.timestamp[this.cursor]
+      );
+      this.cursor++;
+    }
+    this.store.expireBefore(this.time - staleAfter);
+  }
+}
@@ -0,0 +1,78 @@
+export interface PollSchedulerOptions {
+  /** Delay between the end of one poll and the start of the next. */
+  interval: () => number;
+  /** Upper bound on the backoff delay after repeated failures. */
+  maxBackoff: number;
+  onError: (error: unknown) => void;
+}
+
+/**
+ * Runs a poll function repeatedly without ever overlapping requests. Each
+ * poll is scheduled only after the previous one settles, failures back off
+ * exponentially with jitter, and polling stops entirely while paused.
+ */
+export class PollScheduler {
+  private timeoutId: ReturnType<typeof setTimeout> | undefined;
+  private running = false;
+  private started = false;
+  private paused = false;
+  private failures = 0;
+  private lastPollStart = -Infinity;
+
+  constructor(
+    private readonly poll: () => Promise<void>,
+    private readonly options: PollSchedulerOptions
+  ) {}
+
+  start() {
+    if (this.started) return;
+    this.started = true;
+    this.schedule(0);
+  }
+
+  setPaused(paused: boolean) {
+    if (paused === this.paused) return;
+    this.paused = paused;
+    if (paused) {
+      clearTimeout(this.timeoutId);
+      this.timeoutId = undefined;
+    } else if (this.started && !this.running) {
+      const elapsed = performance.now() - this.lastPollStart;
+      this.schedule(Math.max(0, this.nextDelay() - elapsed));
+    }
+  }
+
+  private schedule(delay: number) {
+    clearTimeout(this.timeoutId);
+    this.timeoutId = setTimeout(() => this.run(), delay);
+  }
+
+  private async run() {
+    this.timeoutId = undefined;
+    if (this.paused) return;
+    this.running = true;
+    this.lastPollStart = performance.now();
+    try {
+      await this.poll();
+      this.failures = 0;
+    } catch (error) {
+      this.failures += 1;
+      this.options.onError(error);
+    } finally {
+      this.running = false;
+    }
+    if (!this.paused) this.schedule(this.nextDelay());
+  }
+
+  private nextDelay(): number {
+    const interval = this.options.interval();
+    if (this.failures === 0) return interval;
+    const backoff = Math.min(
+      this.options.maxBackoff,
+      interval * 2 ** this.failures
+    );
+    // Equal jitter: keep at least half the backoff so retries still spread
+    // out, but randomise the rest so clients don't retry in lockstep.
+    return backoff / 2 + Math.random() * (backoff / 2);
+  }
+}
@@ -0,0 +1,185 @@
+import {
+  distanceMetres,
+  latFromMercatorY,
+  lonFromMercatorX,
+  mercatorX,
+  mercatorY,
+} from "./geo";
+import type { GtfsIndex } from "./gtfs";
+import { GridIndex } from "./spatialIndex";
+
+// Fixes further than this from their shape stay where they were observed;
+// the bus is probably on a detour or hasn't reached its route yet.
+const maxSnapMetres = 60;
+
+export interface ShapeMatch {
+  lat: number;
+  lon: number;
+  /** Metres along the shape from its first point. */
+  progress: number;
+}
+
+/**
+ * A GTFS shape as a Web Mercator polyline. Segments go into a GridIndex the
+ * first time a vehicle is matched against the shape, so finding the nearest
+ * one visits a few grid cells rather than the whole line.
+ */
+class Shape {
+  private index: GridIndex | null = null;
+  /** Progress of places looked up with progressOf, by "lat,lon". */
+  private readonly places = new Map<string, number>();
+
+  constructor(
+    private readonly x: Float64Array,
+    private readonly y: Float64Array,
+    /** Cumulative metres to each point. */
+    private readonly distance: Float64Array
+  ) {}
+
+  private segments(): GridIndex {
+    if (this.index !== null) return this.index;
+    const { x, y } = this;
+    const count = x.length - 1;
+    const boxes = new Float64Array(count * 4);
+    for (let i = 0; i < count; i++) {
+      boxes[i * 4] = Math.min(x[i], x[i + 1]);
+      boxes[i * 4 + 1] = Math.min(y[i], y[i + 1]);
+      boxes[i * 4 + 2] = Math.max(x[i], x[i + 1]);
+      boxes[i * 4 + 3] = Math.max(y[i], y[i + 1]);
+    }
+    this.index = new GridIndex(boxes, count);
+    return this.index;
+  }
+
+  /** How far along segment i the point nearest (px, py) lies, from 0 to 1. */
+  private along(i: number, px: number, py: number): number {
+    const dx = this.x[i + 1] - this.x[i];
+    const dy = this.y[i + 1] - this.y[i];
+    const length = dx * dx + dy * dy;
+    if (length === 0) return 0;
+    const t = ((px - this.x[i]) * dx + (py - this.y[i]) * dy) / length;
+    return Math.min(1, Math.max(0, t));
+  }
+
+  match(
+    lat: number,
+    lon: number,
+    maxMetres = maxSnapMetres
+  ): ShapeMatch | null {
+    const px = mercatorX(lon);
+    const py = mercatorY(lat);
+    const [segment] = this.segments().nearest(px, py, 1, (i) => {
+      const t = this.along(i, px, py);
+      const dx = this.x[i] + (this.x[i + 1] - this.x[i]) * t - px;
+      const dy = this.y[i] + (this.y[i + 1] - this.y[i]) * t - py;
+      return dx * dx + dy * dy;
+    });
+    if (segment === undefined) return null;
+    const t = this.along(segment, px, py);
+    const x = this.x[segment] + (this.x[segment + 1] - this.x[segment]) * t;
+    const y = this.y[segment] + (this.y[segment + 1] - this.y[segment]) * t;
+    const match = {
+      lat: latFromMercatorY(y),
+      lon: lonFromMercatorX(x),
+      progress:
+        this.distance[segment] +
+        (this.distance[segment + 1] - this.distance[segment]) * t,
+    };
+    if (distanceMetres(lat, lon, match.lat, match.lon) > maxMetres) {
+      return null;
+    }
+    return match;
+  }
+
+  /**
+   * Metres along the shape to the point nearest a fixed place, like a
+   * station, however far off the route it is. Cached, since the same few
+   * places are asked about every poll.
+   */
+  progressOf(lat: number, lon: number): number {
+    const key = `${lat},${lon}`;
+    let progress = this.places.get(key);
+    if (progress === undefined) {
+      progress = this.match(lat, lon, Infinity)?.progress ?? NaN;
+      this.places.set(key, progress);
+    }
+    return progress;
+  }
+}
+
+/** Builds a Shape from a shape's points in a GtfsIndex. */
+function shapeFromIndex(gtfs: GtfsIndex, shape: number): Shape {
+  const [lats, lons] = gtfs.shapePoints(shape);
+  const x = new Float64Array(lats.length);
+  const y = new Float64Array(lats.length);
+  const distance = new Float64Array(lats.length);
+  for (let i = 0; i < lats.length; i++) {
+    x[i] = mercatorX(lons[i]);
+    y[i] = mercatorY(lats[i]);
+    if (i > 0) {
+      distance[i] =
+        distance[i - 1] +
+        distanceMetres(lats[i - 1], lons[i - 1], lats[i], lons[i]);
+    }
+  }
+  return new Shape(x, y, distance);
+}
+
+/**
+ * The shapes railbus trips run along, read from the GTFS index. Each shape
+ * is projected the first time a vehicle on one of its trips is matched.
+ */
+export class RailbusShapes {
+  private readonly shapes: (Shape | undefined)[];
+
+  constructor(private readonly gtfs: GtfsIndex) {
+    this.shapes = new Array(gtfs.shapeIds.length);
+  }
+
+  private shapeOf(tripId: string | null): Shape | undefined {
+    const trip = this.gtfs.trip(tripId);
+    const shape = trip < 0 ? -1 : this.gtfs.shape(trip);
+    if (shape < 0) return undefined;
+    return (this.shapes[shape] ??= shapeFromIndex(this.gtfs, shape));
+  }
+
+  /**
+   * Snaps a position onto the shape of its trip. Returns null if the trip
+   * has no shape or the position is too far from it.
+   */
+  match(tripId: string | null, lat: number, lon: number): ShapeMatch | null {
+    return this.shapeOf(tripId)?.match(lat, lon) ?? null;
+  }
+
+  /**
+   * Metres along the trip's shape to a place, like a station, which may be
+   * some way off the route itself. NaN when the trip has no shape.
+   */
+  progressOf(tripId: string | null, lat: number, lon: number): number {
+    return this.shapeOf(tripId)?.progressOf(lat, lon) ?? NaN;
+  }
+}
+
+let activeShapes: RailbusShapes | null = null;
+
+export function setRailbusShapes(shapes: RailbusShapes | null) {
+  activeShapes = shapes;
+}
+
+/** Matches against the shapes last passed to setRailbusShapes, if any. */
+export function matchRailbusShape(
+  tripId: string | null,
+  lat: number,
+  lon: number
+): ShapeMatch | null {
+  return activeShapes?.match(tripId, lat, lon) ?? null;
+}
+
+/** RailbusShapes.progressOf on the active shapes, or NaN without any. */
+export function railbusShapeProgress(
+  tripId: string | null,
+  lat: number,
+  lon: number
+): number {
+  return activeShapes?.progressOf(tripId, lat, lon) ?? NaN;
+}
@@ -0,0 +1,203 @@
+/** [minX, minY, maxX, maxY] in whatever planar units the index was built in. */
+export type Box = [number, number, number, number];
+
+function clamp(value: number, min: number, max: number): number {
+  return value < min ? min : value > max ? max : value;
+}
+
+/**
+ * Static uniform grid over axis-aligned boxes, stored as flat typed arrays
+ * (cell offsets plus one item list per cell, like a CSR matrix). Building
+ * is two linear passes, so it is cheap enough to rebuild whenever the boxes
+ * change rather than updating in place.
+ */
+export class GridIndex {
+  private readonly minX: number;
+  private readonly minY: number;
+  private readonly cellWidth: number;
+  private readonly cellHeight: number;
+  private readonly columns: number;
+  private readonly rows: number;
+  private readonly cellStart: Int32Array;
+  private readonly cellItems: Int32Array;
+  // Items visited by the current query, so boxes spanning cells are
+  // reported once.
+  private readonly marks: Uint32Array;
+  private stamp = 0;
+
+  constructor(
+    /** Four numbers per item: minX, minY, maxX, maxY. */
+    private readonly boxes: Float64Array,
+    readonly count: number
+  ) {
+    let minX = Infinity;
+    let minY = Infinity;
+    let maxX = -Infinity;
+    let maxY = -Infinity;
+    for (let i = 0; i < count; i++) {
+      minX = Math.min(minX, boxes[i * 4]);
+      minY = Math.min(minY, boxes[i * 4 + 1]);
+      maxX = Math.max(maxX, boxes[i * 4 + 2]);
+      maxY = Math.max(maxY, boxes[i * 4 + 3]);
+    }
+    if (count === 0) minX = minY = maxX = maxY = 0;
+    // About one item per cell on average.
+    const side = Math.max(1, Math.ceil(Math.sqrt(count)));
+    this.minX = minX;
+    this.minY = minY;
+    this.columns = side;
+    this.rows = side;
+    this.cellWidth = (maxX - minX || 1) / side;
+    this.cellHeight = (maxY - minY || 1) / side;
+
+    const cellStart = new Int32Array(side * side + 1);
+    for (let i = 0; i < count; i++) {
+      this.forEachCell(i, (cell) => cellStart[cell + 1]++);
+    }
+    for (let cell = 0; cell < side * side; cell++) {
+      cellStart[cell + 1] += cellStart[cell];
+    }
+    const cellItems = new Int32Array(cellStart[side * side]);
+    const fill = cellStart.slice(0, side * side);
+    for (let i = 0; i < count; i++) {
+      this.forEachCell(i, (cell) => (cellItems[fill[cell]++] = i));
+    }
+    this.cellStart = cellStart;
+    this.cellItems = cellItems;
+    this.marks = new Uint32Array(count);
+  }
+
+  private column(x: number): number {
+    const column = Math.floor((x - this.minX) / this.cellWidth);
+    return clamp(column, 0, this.columns - 1);
+  }
+
+  private row(y: number): number {
+    const row = Math.floor((y - this.minY) / this.cellHeight);
+    return clamp(row, 0, this.rows - 1);
+  }
+
+  private forEachCell(item: number, callback: (cell: number) => void) {
+    const boxes = this.boxes;
+    const c0 = this.column(boxes[item * 4]);
+    const c1 = this.column(boxes[item * 4 + 2]);
+    const r0 = this.row(boxes[item * 4 + 1]);
+    const r1 = this.row(boxes[item * 4 + 3]);
+    for (let row = r0; row <= r1; row++) {
+      for (let column = c0; column <= c1; column++) {
+        callback(row * this.columns + column);
+      }
+    }
+  }
+
+  /** Squared distance from a point to an item's box; zero inside it. */
+  boxDistance(item: number, x: number, y: number): number {
+    const boxes = this.boxes;
+    const dx = Math.max(boxes[item * 4] - x, 0, x - boxes[item * 4 + 2]);
+    const dy = Math.max(boxes[item * 4 + 1] - y, 0, y - boxes[item * 4 + 3]);
+    return dx * dx + dy * dy;
+  }
+
+  /** Visits every item whose box overlaps the query box, once each. */
+  search(box: Box, callback: (item: number) => void) {
+    const [minX, minY, maxX, maxY] = box;
+    const { boxes, cellStart, cellItems, marks } = this;
+    const stamp = ++this.stamp;
+    const c0 = this.column(minX);
+    const c1 = this.column(maxX);
+    const r0 = this.row(minY);
+    const r1 = this.row(maxY);
+    for (let row = r0; row <= r1; row++) {
+      for (let column = c0; column <= c1; column++) {
+        const cell = row * this.columns + column;
+        for (let k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+          const item = cellItems[k];
+          if (marks[item] === stamp) continue;
+          marks[item] = stamp;
+          if (
+            boxes[item * 4] <= maxX &&
+            boxes[item * 4 + 2] >= minX &&
+            boxes[item * 4 + 1] <= maxY &&
+            boxes[item * 4 + 3] >= minY
+          ) {
+            callback(item);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Up to n items closest to a point, nearest first. Cells are visited in
+   * growing rings until nothing unvisited could beat the n-th best. The
+   * distance callback gives squared distances in index units; it may refine
+   * the box distance (but never return less, or results may be missed) or
+   * return Infinity to skip an item. By default it is the box distance.
+   */
+  nearest(
+    x: number,
+    y: number,
+    n: number,
+    distance: (item: number) => number = (item) =>
+      this.boxDistance(item, x, y)
+  ): number[] {
+    const best: { item: number; distance: number }[] = [];
+    if (this.count === 0 || n <= 0) return [];
+    const { cellStart, cellItems, marks } = this;
+    const stamp = ++this.stamp;
+    const column = this.column(x);
+    const row = this.row(y);
+
+    for (let ring = 0; ; ring++) {
+      const c0 = column - ring;
+      const c1 = column + ring;
+      const r0 = row - ring;
+      const r1 = row + ring;
+      for (let r = Math.max(r0, 0); r <= Math.min(r1, this.rows - 1); r++) {
+        const edgeRow = r === r0 || r === r1;
+        for (
+          let c = Math.max(c0, 0);
+          c <= Math.min(c1, this.columns - 1);
+          c++
+        ) {
+          // Only the outline of the ring is new.
+          if (!edgeRow && c !== c0 && c !== c1) continue;
+          const cell = r * this.columns + c;
+          for (let k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+            const item = cellItems[k];
+            if (marks[item] === stamp) continue;
+            marks[item] = stamp;
+            const d = distance(item);
+            if (d === Infinity) continue;
+            if (best.length === n && d >= best[n - 1].distance) continue;
+            let at = best.length;
+            while (at > 0 && best[at - 1].distance > d) at--;
+            best.splice(at, 0, { item, distance: d });
+            if (best.length > n) best.pop();
+          }
+        }
+      }
+
+      const covered =
+        c0 <= 0 && r0 <= 0 && c1 >= this.columns - 1 && r1 >= this.rows - 1;
+      if (covered) break;
+      if (best.length === n) {
+        // Nearest point not yet covered by the visited rings. Sides at the
+        // edge of the grid have nothing beyond them.
+        const gaps = [
+          c0 > 0 ? x - (this.minX + c0 * this.cellWidth) : Infinity,
+          c1 < this.columns - 1
+            ? this.minX + (c1 + 1) * this.cellWidth - x
+            : Infinity,
+          r0 > 0 ? y - (this.minY + r0 * this.cellHeight) : Infinity,
+          r1 < this.rows - 1
+            ? this.minY + (r1 + 1) * this.cellHeight - y
+            : Infinity,
+        ];
+        const gap = Math.max(0, Math.min(...gaps));
+        if (best[n - 1].distance <= gap * gap) break;
+      }
+    }
+    return best.map(({ item }) => item);
+  }
+}
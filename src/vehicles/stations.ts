@@ -0,0 +1,10 @@
+import railStations from "./railStations.json";
+
+export interface RailStation {
+  name: string;
+  lat: number;
+  lon: number;
+}
+
+/** Stations railbus services call at, for "vehicles near" lookups. */
+export const RailStations: RailStation[] = railStations;
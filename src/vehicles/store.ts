@@ -0,0 +1,478 @@
+import { scheduleDelay, scheduleHeadsign } from "./adherence";
+import { clusterVehicles } from "./cluster";
+import {
+  HiddenStyle,
+  NotInServiceStyle,
+  RailbusStyle,
+  VehicleFrame,
+} from "./frame";
+import {
+  Bounds,
+  containsPoint,
+  distanceMetres,
+  mercatorX,
+  mercatorY,
+} from "./geo";
+import { ObservationHistory } from "./history";
+import { VehicleObservation } from "./observation";
+import { railbusLineIndex, railbusRouteName } from "./railbus";
+import { matchRailbusShape } from "./shapes";
+
+export const NoValue = -1;
+
+/** Interns strings so columns can hold small integer indices instead. */
+export class StringTable {
+  private readonly indices = new Map<string, number>();
+  private readonly values: string[] = [];
+
+  intern(value: string | null): number {
+    if (value === null) return NoValue;
+    let index = this.indices.get(value);
+    if (index === undefined) {
+      index = this.values.length;
+      this.values.push(value);
+      this.indices.set(value, index);
+    }
+    return index;
+  }
+
+  get(index: number): string | null {
+    return index === NoValue ? null : this.values[index];
+  }
+
+  /** Number of distinct strings; valid indices run from 0 below it. */
+  get size(): number {
+    return this.values.length;
+  }
+}
+
+const Added = 1;
+const Moved = 2;
+const Changed = 4;
+
+/** Copy of a column with room for capacity slots, the new ones filled. */
+export function grown<
+  T extends Float64Array | Int32Array | Int8Array | Uint32Array | Uint8Array
+>(
+  column: T,
+  capacity: number,
+  fill: number
+): T {
+  const next = new (column.constructor as new (length: number) => T)(capacity);
+  next.set(column);
+  next.fill(fill, column.length);
+  return next;
+}
+
+/**
+ * Holds the current fleet as typed-array columns indexed by slot. Each poll
+ * overwrites slots in place, so steady-state polls allocate nothing beyond
+ * the parsed observations and the diff handed to the map.
+ */
+export class VehicleStore {
+  readonly strings = new StringTable();
+  readonly history: ObservationHistory;
+
+  vehicle: Int32Array;
+  lat: Float64Array;
+  lon: Float64Array;
+  /** Degrees clockwise from north, or NaN when unknown. */
+  bearing: Float64Array;
+  timestamp: Float64Array;
+  /** Metres per second, estimated from the last two observations. */
+  speed: Float64Array;
+  /**
+   * Position snapped onto the trip's shape, which is what gets drawn, or
+   * NaN when the vehicle isn't matched to one.
+   */
+  snappedLat: Float64Array;
+  snappedLon: Float64Array;
+  /** Metres along the trip's shape, or NaN when not matched. */
+  progress: Float64Array;
+  /** Seconds behind schedule, negative when early, or NaN when unknown. */
+  delay: Float64Array;
+  /** Stop the vehicle last left, carried between polls by scheduleDelay. */
+  private stopCursor: Int32Array;
+  route: Int32Array;
+  railbus: Int32Array;
+  trip: Int32Array;
+  tripStartTime: Int32Array;
+  currentPassengerCount: Int32Array;
+  totalPassengerCount: Int32Array;
+  private lastSeen: Uint32Array;
+  private flags: Uint8Array;
+
+  private readonly slots = new Map<string, number>();
+  private readonly freeSlots: number[] = [];
+  private removedSinceTake = false;
+  private highWater = 0;
+  private poll = 0;
+
+  constructor(capacity = 512, historyLength = 360) {
+    this.history = new ObservationHistory(historyLength, capacity);
+    this.vehicle = new Int32Array(capacity).fill(NoValue);
+    this.lat = new Float64Array(capacity);
+    this.lon = new Float64Array(capacity);
+    this.bearing = new Float64Array(capacity);
+    this.timestamp = new Float64Array(capacity);
+    this.speed = new Float64Array(capacity);
+    this.snappedLat = new Float64Array(capacity).fill(NaN);
+    this.snappedLon = new Float64Array(capacity).fill(NaN);
+    this.progress = new Float64Array(capacity).fill(NaN);
+    this.delay = new Float64Array(capacity).fill(NaN);
+    this.stopCursor = new Int32Array(capacity).fill(NoValue);
+    this.route = new Int32Array(capacity).fill(NoValue);
+    this.railbus = new Int32Array(capacity).fill(NoValue);
+    this.trip = new Int32Array(capacity).fill(NoValue);
+    this.tripStartTime = new Int32Array(capacity).fill(NoValue);
+    this.currentPassengerCount = new Int32Array(capacity).fill(NoValue);
+    this.totalPassengerCount = new Int32Array(capacity).fill(NoValue);
+    this.lastSeen = new Uint32Array(capacity);
+    this.flags = new Uint8Array(capacity);
+  }
+
+  get size(): number {
+    return this.slots.size;
+  }
+
+  /** Upper bound on slot indices; slots below it may be free. */
+  get slotCount(): number {
+    return this.highWater;
+  }
+
+  isLive(slot: number): boolean {
+    return this.vehicle[slot] !== NoValue;
+  }
+
+  slotOf(vehicleId: string): number | undefined {
+    return this.slots.get(vehicleId);
+  }
+
+  beginPoll() {
+    this.poll += 1;
+  }
+
+  /**
+   * Writes an observation into its vehicle's slot. Returns true if it was
+   * newer than anything already recorded for that vehicle. Callers that
+   * already hold the timestamp as a number can pass it to skip parsing.
+   */
+  upsert(
+    observation: VehicleObservation,
+    timestamp = Date.parse(observation.timestamp)
+  ): boolean {
+    let slot = this.slots.get(observation.vehicleId);
+    if (slot === undefined) {
+      slot = this.allocate();
+      this.slots.set(observation.vehicleId, slot);
+      this.vehicle[slot] = this.strings.intern(observation.vehicleId);
+      this.flags[slot] = Added;
+      this.speed[slot] = 0;
+      this.stopCursor[slot] = NoValue;
+    } else {
+      const moved =
+        this.lat[slot] !== observation.lat ||
+        this.lon[slot] !== observation.lon;
+      if (moved) this.flags[slot] |= Moved;
+      const elapsed = (timestamp - this.timestamp[slot]) / 1000;
+      if (elapsed > 0) {
+        this.speed[slot] = moved
+          ? distanceMetres(
+              this.lat[slot],
+              this.lon[slot],
+              observation.lat,
+              observation.lon
+            ) / elapsed
+          : 0;
+      }
+    }
+    this.lastSeen[slot] = this.poll;
+    this.lat[slot] = observation.lat;
+    this.lon[slot] = observation.lon;
+    this.bearing[slot] = observation.bearing ?? NaN;
+    this.timestamp[slot] = timestamp;
+
+    const route = this.strings.intern(observation.routeId);
+    if (route !== this.route[slot] || this.flags[slot] & Added) {
+      this.route[slot] = route;
+      this.railbus[slot] = this.strings.intern(
+        railbusRouteName(observation.routeId)
+      );
+      this.flags[slot] |= Changed;
+    }
+    const trip = this.strings.intern(observation.tripId);
+    if (trip !== this.trip[slot]) this.stopCursor[slot] = NoValue;
+    this.setProperty(this.trip, slot, trip);
+    this.setProperty(
+      this.tripStartTime,
+      slot,
+      this.strings.intern(observation.tripStartTime)
+    );
+    this.setProperty(
+      this.currentPassengerCount,
+      slot,
+      observation.currentPassengerCount ?? NoValue
+    );
+    this.setProperty(
+      this.totalPassengerCount,
+      slot,
+      observation.totalPassengerCount ?? NoValue
+    );
+    this.snap(slot);
+    this.updateDelay(slot);
+
+    // Trails follow the snapped path too.
+    const recorded = timestamp > this.history.latest(slot);
+    if (recorded) {
+      this.history.record(
+        slot,
+        this.drawnLat(slot),
+        this.drawnLon(slot),
+        timestamp
+      );
+    }
+    return recorded;
+  }
+
+  /**
+   * Matches a railbus vehicle to its trip's shape, smoothing out GPS jitter
+   * before it is drawn or used to work out progress.
+   */
+  private snap(slot: number) {
+    const match =
+      this.railbus[slot] === NoValue
+        ? null
+        : matchRailbusShape(
+            this.strings.get(this.trip[slot]),
+            this.lat[slot],
+            this.lon[slot]
+          );
+    const lat = match?.lat ?? NaN;
+    const lon = match?.lon ?? NaN;
+    if (
+      !Object.is(lat, this.snappedLat[slot]) ||
+      !Object.is(lon, this.snappedLon[slot])
+    ) {
+      this.flags[slot] |= Moved;
+    }
+    this.snappedLat[slot] = lat;
+    this.snappedLon[slot] = lon;
+    this.progress[slot] = match?.progress ?? NaN;
+  }
+
+  private updateDelay(slot: number) {
+    const delay =
+      this.railbus[slot] === NoValue
+        ? NaN
+        : scheduleDelay(
+            this.strings.get(this.trip[slot]),
+            this.strings.get(this.tripStartTime[slot]),
+            this.drawnLat(slot),
+            this.drawnLon(slot),
+            this.timestamp[slot],
+            this.stopCursor,
+            slot
+          );
+    if (!Object.is(delay, this.delay[slot])) this.flags[slot] |= Changed;
+    this.delay[slot] = delay;
+  }
+
+  /** Where the vehicle is drawn: snapped to its shape if matched. */
+  drawnLat(slot: number): number {
+    const lat = this.snappedLat[slot];
+    return isNaN(lat) ? this.lat[slot] : lat;
+  }
+
+  drawnLon(slot: number): number {
+    const lon = this.snappedLon[slot];
+    return isNaN(lon) ? this.lon[slot] : lon;
+  }
+
+  /** Frees the slots of vehicles that were missing from this poll. */
+  endPoll() {
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (!this.isLive(slot) || this.lastSeen[slot] === this.poll) continue;
+      this.free(slot);
+    }
+  }
+
+  /** Frees the slots of vehicles last observed before time. */
+  expireBefore(time: number) {
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (this.isLive(slot) && this.timestamp[slot] < time) this.free(slot);
+    }
+  }
+
+  /** Forgets every vehicle. */
+  clear() {
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (this.isLive(slot)) this.free(slot);
+    }
+  }
+
+  private free(slot: number) {
+    const vehicleId = this.strings.get(this.vehicle[slot]) as string;
+    this.slots.delete(vehicleId);
+    this.vehicle[slot] = NoValue;
+    this.flags[slot] = 0;
+    this.history.clear(slot);
+    this.freeSlots.push(slot);
+    this.removedSinceTake = true;
+  }
+
+  /** Fastest estimated speed of any vehicle inside the bounds. */
+  maxSpeedWithin(bounds: Bounds): number {
+    let maxSpeed = 0;
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (
+        this.isLive(slot) &&
+        this.speed[slot] > maxSpeed &&
+        containsPoint(bounds, this.lon[slot], this.lat[slot])
+      ) {
+        maxSpeed = this.speed[slot];
+      }
+    }
+    return maxSpeed;
+  }
+
+  /** Read view of a single slot, for popups and other one-off lookups. */
+  observation(slot: number): VehicleObservation {
+    const currentPassengerCount = this.currentPassengerCount[slot];
+    const totalPassengerCount = this.totalPassengerCount[slot];
+    const bearing = this.bearing[slot];
+    return {
+      vehicleId: this.strings.get(this.vehicle[slot]) as string,
+      timestamp: new Date(this.timestamp[slot]).toISOString(),
+      lat: this.lat[slot],
+      lon: this.lon[slot],
+      bearing: isNaN(bearing) ? null : bearing,
+      tripId: this.strings.get(this.trip[slot]),
+      routeId: this.strings.get(this.route[slot]),
+      railbusRouteName: this.strings.get(this.railbus[slot]),
+      tripStartTime: this.strings.get(this.tripStartTime[slot]),
+      currentPassengerCount:
+        currentPassengerCount === NoValue ? null : currentPassengerCount,
+      totalPassengerCount:
+        totalPassengerCount === NoValue ? null : totalPassengerCount,
+    };
+  }
+
+  /** Compact copy of every live vehicle, for drawing and animation. */
+  frame(): VehicleFrame {
+    const size = this.slots.size;
+    const frame: VehicleFrame = {
+      vehicleIds: new Array(size),
+      tripIds: new Array(size),
+      headsigns: new Array(size),
+      x: new Float64Array(size),
+      y: new Float64Array(size),
+      bearing: new Float32Array(size),
+      style: new Uint8Array(size),
+      delay: new Float32Array(size),
+      clusters: [],
+    };
+    let index = 0;
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (!this.isLive(slot)) continue;
+      frame.vehicleIds[index] = this.strings.get(this.vehicle[slot]) as string;
+      frame.tripIds[index] = this.strings.get(this.trip[slot]);
+      frame.headsigns[index] = scheduleHeadsign(frame.tripIds[index]);
+      frame.x[index] = mercatorX(this.drawnLon(slot));
+      frame.y[index] = mercatorY(this.drawnLat(slot));
+      const bearing = this.bearing[slot];
+      frame.bearing[index] = isNaN(bearing) ? -1 : bearing;
+      frame.style[index] = this.style(slot);
+      frame.delay[index] = this.delay[slot];
+      index++;
+    }
+    frame.clusters = clusterVehicles(frame.x, frame.y, frame.style);
+    return frame;
+  }
+
+  private style(slot: number): number {
+    if (!this.strings.get(this.route[slot])) return NotInServiceStyle;
+    const railLineName = this.strings.get(this.railbus[slot]);
+    if (railLineName === null) return HiddenStyle;
+    const lineIndex = railbusLineIndex(railLineName);
+    return lineIndex < 0 ? HiddenStyle : RailbusStyle + lineIndex;
+  }
+
+  /**
+   * Whether any vehicle was added, moved, changed or removed since the last
+   * call, clearing the change flags.
+   */
+  takeChanges(): boolean {
+    let changed = this.removedSinceTake;
+    this.removedSinceTake = false;
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (this.flags[slot] !== 0) {
+        changed = true;
+        this.flags[slot] = 0;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Re-runs railbus classification, shape matching and schedule tracking
+   * after the route table, shapes or timetable change.
+   */
+  reclassify() {
+    for (let slot = 0; slot < this.highWater; slot++) {
+      if (!this.isLive(slot)) continue;
+      const routeId = this.strings.get(this.route[slot]);
+      this.setProperty(
+        this.railbus,
+        slot,
+        this.strings.intern(railbusRouteName(routeId))
+      );
+      this.snap(slot);
+      this.stopCursor[slot] = NoValue;
+      this.updateDelay(slot);
+    }
+  }
+
+  private setProperty(column: Int32Array, slot: number, value: number) {
+    if (column[slot] !== value) {
+      column[slot] = value;
+      this.flags[slot] |= Changed;
+    }
+  }
+
+  private allocate(): number {
+    const free = this.freeSlots.pop();
+    if (free !== undefined) return free;
+    if (this.highWater === this.vehicle.length) {
+      const capacity = this.vehicle.length * 2;
+      this.history.grow(capacity);
+      this.vehicle = grown(this.vehicle, capacity, NoValue);
+      this.lat = grown(this.lat, capacity, 0);
+      this.lon = grown(this.lon, capacity, 0);
+      this.bearing = grown(this.bearing, capacity, NaN);
+      this.timestamp = grown(this.timestamp, capacity, 0);
+      this.speed = grown(this.speed, capacity, 0);
+      this.snappedLat = grown(this.snappedLat, capacity, NaN);
+      this.snappedLon = grown(this.snappedLon, capacity, NaN);
+      this.progress = grown(this.progress, capacity, NaN);
+      this.delay = grown(this.delay, capacity, NaN);
+      this.stopCursor = grown(this.stopCursor, capacity, NoValue);
+      this.route = grown(this.route, capacity, NoValue);
+      this.railbus = grown(this.railbus, capacity, NoValue);
+      this.trip = grown(this.trip, capacity, NoValue);
+      this.tripStartTime = grown(this.tripStartTime, capacity, NoValue);
+      this.currentPassengerCount = grown(
+        this.currentPassengerCount,
+        capacity,
+        NoValue
+      );
+      this.totalPassengerCount = grown(
+        this.totalPassengerCount,
+        capacity,
+        NoValue
+      );
+      this.lastSeen = grown(this.lastSeen, capacity, 0);
+      this.flags = grown(this.flags, capacity, 0);
+    }
+    return this.highWater++;
+  }
+}
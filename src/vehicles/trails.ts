@@ -0,0 +1,35 @@
+import { VehicleStore } from "./store";
+
+export interface TrailProperties {
+  vehicleId: string;
+  railbusRouteName: string;
+}
+
+/** Recent paths of railbus vehicles since the given epoch-ms time. */
+export function railbusTrails(
+  store: VehicleStore,
+  since: number
+): GeoJSON.FeatureCollection<GeoJSON.LineString, TrailProperties> {
+  const { history } = store;
+  const features: GeoJSON.Feature<GeoJSON.LineString, TrailProperties>[] = [];
+  for (let slot = 0; slot < store.slotCount; slot++) {
+    if (!store.isLive(slot) || history.size(slot) < 2) continue;
+    const railbusRouteName = store.strings.get(store.railbus[slot]);
+    if (railbusRouteName === null) continue;
+
+    const coordinates: GeoJSON.Position[] = [];
+    history.forEach(slot, since, (index) => {
+      coordinates.push([history.lon[index], history.lat[index]]);
+    });
+    if (coordinates.length < 2) continue;
+    features.push({
+      type: "Feature",
+      geometry: { type: "LineString", coordinates },
+      properties: {
+        vehicleId: store.strings.get(store.vehicle[slot]) as string,
+        railbusRouteName,
+      },
+    });
+  }
+  return { type: "FeatureCollection", features };
+}
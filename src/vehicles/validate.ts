@@ -0,0 +1,151 @@
+import {
+  parseVehicleObservation,
+  RawVehicleObservationSchema,
+  VehicleObservation,
+} from "./observation";
+
+type UnknownObject = { [key: string]: unknown };
+
+function isRecord(value: unknown): value is UnknownObject {
+  return typeof value === "object" && value !== null && !Array.isArray(value);
+}
+
+function isNullableString(value: unknown): value is string | null {
+  return value === null || typeof value === "string";
+}
+
+function isNullableNumber(value: unknown): value is number | null {
+  return value === null || (typeof value === "number" && !isNaN(value));
+}
+
+function digitsAt(value: string, start: number, count: number): number {
+  let result = 0;
+  for (let i = start; i < start + count; i++) {
+    const digit = value.charCodeAt(i) - 48;
+    if (digit < 0 || digit > 9) return -1;
+    result = result * 10 + digit;
+  }
+  return result;
+}
+
+function daysInMonth(year: number, month: number): number {
+  if (month === 2) {
+    const leap = year % 4 === 0 && (year % 100 !== 0 || year % 400 === 0);
+    return leap ? 29 : 28;
+  }
+  return month === 4 || month === 6 || month === 9 || month === 11 ? 30 : 31;
+}
+
+// Accepts the same strings as z.string().datetime(): YYYY-MM-DDTHH:MM:SS
+// with optional fractional seconds and a trailing Z, on a day that exists
+// in that month, without building a regex match for every vehicle.
+function isUtcDatetime(value: unknown): value is string {
+  if (typeof value !== "string" || value.length < 20) return false;
+  if (
+    value.charCodeAt(4) !== 45 || // -
+    value.charCodeAt(7) !== 45 ||
+    value.charCodeAt(10) !== 84 || // T
+    value.charCodeAt(13) !== 58 || // :
+    value.charCodeAt(16) !== 58 ||
+    value.charCodeAt(value.length - 1) !== 90 // Z
+  ) {
+    return false;
+  }
+  const year = digitsAt(value, 0, 4);
+  const month = digitsAt(value, 5, 2);
+  const day = digitsAt(value, 8, 2);
+  const hour = digitsAt(value, 11, 2);
+  const minute = digitsAt(value, 14, 2);
+  const second = digitsAt(value, 17, 2);
+  if (
+    year < 0 ||
+    month < 1 ||
+    month > 12 ||
+    day < 1 ||
+    day > daysInMonth(year, month) ||
+    hour < 0 ||
+    hour > 23 ||
+    minute < 0 ||
+    minute > 59 ||
+    second < 0 ||
+    second > 59
+  ) {
+    return false;
+  }
+  if (value.length === 20) return true;
+  // Fractional seconds: a dot followed by at least one digit before the Z.
+  return (
+    value.charCodeAt(19) === 46 &&
+    value.length > 21 &&
+    digitsAt(value, 20, value.length - 21) >= 0
+  );
+}
+
+/**
+ * Validates a raw Snapper vehicle and projects it straight into a
+ * VehicleObservation, or returns null if anything doesn't match
+ * RawVehicleObservationSchema.
+ */
+function fastParseVehicleObservation(raw: unknown): VehicleObservation | null {
+  if (!isRecord(raw) || typeof raw.vehicleId !== "string") return null;
+
+  const locationDetails = raw.locationDetails;
+  if (!isRecord(locationDetails)) return null;
+  const location = locationDetails.simpleLocationDetails;
+  if (!isRecord(location)) return null;
+  const { lat, lon } = location;
+  if (
+    !isUtcDatetime(location.timestamp) ||
+    typeof lat !== "number" ||
+    !(lat >= -90 && lat <= 90) ||
+    typeof lon !== "number" ||
+    !(lon >= -180 && lon <= 180) ||
+    !isNullableNumber(location.bearing) ||
+    !isNullableNumber(location.bearingAccuracy) ||
+    !isNullableNumber(location.speed) ||
+    !isNullableNumber(location.speedAccuracy)
+  ) {
+    return null;
+  }
+
+  const trip = raw.tripDetails;
+  if (
+    !isRecord(trip) ||
+    !isNullableString(trip.tripId) ||
+    !isNullableString(trip.routeId) ||
+    !isNullableString(trip.blockId) ||
+    !isNullableString(trip.tripShortName) ||
+    !isNullableString(trip.routeShortName) ||
+    !isNullableString(trip.tripStartTime) ||
+    !isNullableNumber(trip.currentPassengerCount) ||
+    !isNullableNumber(trip.totalPassengerCount)
+  ) {
+    return null;
+  }
+
+  return {
+    vehicleId: raw.vehicleId.slice(5),
+    timestamp: location.timestamp,
+    lat,
+    lon,
+    bearing: location.bearing,
+    tripId: trip.tripId,
+    routeId: trip.routeId,
+    railbusRouteName: null,
+    tripStartTime: trip.tripStartTime,
+    currentPassengerCount: trip.currentPassengerCount,
+    totalPassengerCount: trip.totalPassengerCount,
+  };
+}
+
+/**
+ * Parses one raw Snapper vehicle. Records go through the hand-written fast
+ * path first; anything it rejects is re-parsed with the zod schema, which
+ * throws a ZodError describing the problem.
+ */
+export function validateVehicleObservation(raw: unknown): VehicleObservation {
+  return (
+    fastParseVehicleObservation(raw) ??
+    parseVehicleObservation(RawVehicleObservationSchema.parse(raw))
+  );
+}
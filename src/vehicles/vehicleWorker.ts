@@ -0,0 +1,268 @@
+import { setScheduleIndex } from "./adherence";
+import { ObservationChunkView } from "./chunkCodec";
+import { fetchVehicles } from "./fetch";
+import { frameTransferables } from "./frame";
+import { Bounds } from "./geo";
+import { loadGtfsIndex } from "./gtfs";
+import { HeadwayMonitor } from "./headway";
+import { VehicleWorkerRequest, VehicleWorkerResponse } from "./messages";
+import {
+  ObservationWriter,
+  openObservationDatabase,
+  readChunks,
+  readObservations,
+} from "./persistence";
+import { ArrivalPredictor } from "./predictions";
+import { fetchRailbusRoutes, setRailbusRoutes } from "./railbus";
+import { Recording } from "./recording";
+import { exportRecording, importRecording } from "./recordingFile";
+import { Replay } from "./replay";
+import { PollScheduler } from "./scheduler";
+import { RailbusShapes, setRailbusShapes } from "./shapes";
+import { VehicleStore } from "./store";
+import { railbusTrails } from "./trails";
+
+// Vehicles in view moving faster than this (~45 km/h) halve the interval.
+const fastSpeed = 12.5;
+const maxBackoff = 120000;
+// Trails cover this much history; the store keeps enough points per vehicle
+// for it at the normal poll rate.
+const trailWindow = 30 * 60 * 1000;
+// History restored from IndexedDB on startup, and how long it is kept.
+const restoreWindow = 60 * 60 * 1000;
+const historyRetention = 24 * 60 * 60 * 1000;
+const historyFlushDelay = 30000;
+
+// Per-store state for the headway and arrival panels.
+interface Monitors {
+  headways: HeadwayMonitor;
+  arrivals: ArrivalPredictor;
+}
+
+function newMonitors(): Monitors {
+  return { headways: new HeadwayMonitor(), arrivals: new ArrivalPredictor() };
+}
+
+const store = new VehicleStore();
+const liveMonitors = newMonitors();
+let pollRate = 5000;
+let viewport: Bounds | null = null;
+let database: IDBDatabase | null = null;
+let historyWriter: ObservationWriter | null = null;
+let restored: Promise<void> = Promise.resolve();
+// While replaying, live polls keep updating the store but aren't drawn.
+let replay: Replay | null = null;
+let replayMonitors = newMonitors();
+
+function post(message: VehicleWorkerResponse, transfer: Transferable[] = []) {
+  self.postMessage(message, { transfer });
+}
+
+function publishStore(
+  source: VehicleStore,
+  monitors: Monitors,
+  now: number,
+  force = false
+) {
+  // takeChanges comes first so forcing still clears the change flags.
+  if (!source.takeChanges() && !force) return;
+  const frame = source.frame();
+  post({ type: "frame", frame }, frameTransferables(frame));
+  const trails = railbusTrails(source, now - trailWindow);
+  post({ type: "trails", trails });
+  const lines = monitors.headways.update(source);
+  post({ type: "headways", lines });
+  const stations = monitors.arrivals.update(source, lines, now);
+  post({ type: "arrivals", time: now, stations });
+}
+
+function publish() {
+  if (replay === null) publishStore(store, liveMonitors, Date.now());
+}
+
+function publishReplay(force = false) {
+  if (replay === null) return;
+  const state = replay.state;
+  publishStore(replay.store, replayMonitors, state.time, force);
+  post({ type: "replayState", state });
+}
+
+async function openReplay() {
+  await restored;
+  if (database === null) {
+    post({ type: "error", message: "No recorded history to replay" });
+    return;
+  }
+  await historyWriter?.flushPending();
+  const chunks = await readChunks(database, Date.now() - historyRetention);
+  startReplay(
+    Recording.fromChunks(chunks.map((chunk) => new ObservationChunkView(chunk)))
+  );
+}
+
+function startReplay(recording: Recording) {
+  if (recording.count === 0) {
+    post({ type: "error", message: "No recorded history to replay" });
+    return;
+  }
+  replay?.close();
+  replayMonitors = newMonitors();
+  replay = new Replay(recording, trailWindow, () => publishReplay());
+  publishReplay(true);
+}
+
+async function exportReplay() {
+  if (replay === null) return;
+  const data = await exportRecording(replay.recording);
+  post({ type: "recordingExport", data }, [data]);
+}
+
+function closeReplay() {
+  if (replay === null) return;
+  replay.close();
+  replay = null;
+  post({ type: "replayState", state: null });
+  // Redraw the live fleet even if nothing changed while replaying.
+  publishStore(store, liveMonitors, Date.now(), true);
+}
+
+async function restoreHistory() {
+  try {
+    database = await openObservationDatabase();
+    store.beginPoll();
+    const count = await readObservations(
+      database,
+      Date.now() - restoreWindow,
+      (observation, timestamp) => store.upsert(observation, timestamp)
+    );
+    store.endPoll();
+    console.log(`Restored ${count} observations`);
+    publish();
+    historyWriter = new ObservationWriter(
+      database,
+      historyFlushDelay,
+      historyRetention
+    );
+  } catch (error) {
+    post({ type: "error", message: String(error) });
+  }
+}
+
+async function updateVehicles() {
+  let initialLoad = false;
+  let vehicleCount = 0;
+  // The poll only opens once there is a changed fleet to write, so an
+  // unchanged poll leaves the store alone and every beginPoll is matched by
+  // the endPoll below. Restored history must land first so it doesn't
+  // overwrite fresh data, but the fetch itself doesn't wait for it.
+  const beginPoll = async () => {
+    await restored;
+    initialLoad = store.size === 0;
+    store.beginPoll();
+  };
+  const changed = await fetchVehicles(async (vehicles) => {
+    if (vehicleCount === 0) await beginPoll();
+    for (const vehicle of vehicles) {
+      if (store.upsert(vehicle)) historyWriter?.add(vehicle);
+    }
+    vehicleCount += vehicles.length;
+    // Show the first markers while the rest of the feed is still arriving.
+    if (initialLoad) publish();
+  });
+  if (!changed) return;
+  // An empty fleet still ends a poll, dropping every vehicle.
+  if (vehicleCount === 0) await beginPoll();
+  console.log(`Fetched ${vehicleCount} vehicles`);
+  store.endPoll();
+  publish();
+}
+
+function pollInterval(): number {
+  if (viewport !== null && store.maxSpeedWithin(viewport) > fastSpeed) {
+    return pollRate / 2;
+  }
+  return pollRate;
+}
+
+const scheduler = new PollScheduler(updateVehicles, {
+  interval: pollInterval,
+  maxBackoff,
+  onError: (error) => post({ type: "error", message: String(error) }),
+});
+
+function reclassify() {
+  store.reclassify();
+  replay?.store.reclassify();
+  publish();
+  publishReplay();
+}
+
+async function loadSchedule(baseUrl: string) {
+  try {
+    const gtfs = await loadGtfsIndex(baseUrl);
+    if (gtfs === null) return;
+    setScheduleIndex(gtfs);
+    setRailbusShapes(new RailbusShapes(gtfs));
+    reclassify();
+  } catch (error) {
+    post({ type: "error", message: String(error) });
+  }
+}
+
+async function updateRailbusRoutes(baseUrl: string) {
+  try {
+    const routes = await fetchRailbusRoutes(baseUrl);
+    if (routes !== null) {
+      setRailbusRoutes(routes);
+      post({ type: "routes", routes });
+      reclassify();
+    }
+  } catch (error) {
+    post({ type: "error", message: String(error) });
+  }
+}
+
+self.addEventListener(
+  "message",
+  (event: MessageEvent<VehicleWorkerRequest>) => {
+    const request = event.data;
+    switch (request.type) {
+      case "start":
+        pollRate = request.pollRate;
+        restored = restoreHistory();
+        updateRailbusRoutes(request.baseUrl);
+        loadSchedule(request.baseUrl);
+        scheduler.start();
+        break;
+      case "visibility":
+        scheduler.setPaused(request.hidden);
+        break;
+      case "viewport":
+        viewport = request.bounds;
+        break;
+      case "replayOpen":
+        openReplay().catch((error) =>
+          post({ type: "error", message: String(error) })
+        );
+        break;
+      case "replayControl":
+        if (request.time !== undefined) replay?.seek(request.time);
+        if (request.speed !== undefined) replay?.setSpeed(request.speed);
+        if (request.playing !== undefined) replay?.setPlaying(request.playing);
+        break;
+      case "replayClose":
+        closeReplay();
+        break;
+      case "replayExport":
+        exportReplay().catch((error) =>
+          post({ type: "error", message: String(error) })
+        );
+        break;
+      case "replayImport":
+        importRecording(request.data)
+          .then(startReplay)
+          .catch((error) => post({ type: "error", message: String(error) }));
+        break;
+    }
+  }
+);